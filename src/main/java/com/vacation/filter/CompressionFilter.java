@@ -0,0 +1,353 @@
+package com.vacation.filter;
+
+import com.vacation.util.LruCache;
+
+import javax.servlet.*;
+import javax.servlet.http.*;
+import java.io.*;
+import java.util.function.Supplier;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+// gzip / deflate compression of API responses, negotiated from Accept-Encoding.
+// Responses that carry an ETag are version-stable: their compressed bytes are kept, keyed by
+// URL, encoding and ETag, and served again without running the servlet or compressing again.
+// A servlet opts in by publishing a Supplier<String> of its current ETag as the context
+// attribute ETAG_ATTRIBUTE + servlet name.
+// Compressed representations get their own ETag (suffix "-gzip" / "-deflate"); the suffix is
+// stripped from If-None-Match before the servlet sees it.
+// A response is never kept when it sends Cache-Control: no-store, or when the servlet sets the
+// request attribute NO_STORE_ATTRIBUTE, which still works once the body is committed (e.g. a
+// result cut short after output started).
+public class CompressionFilter implements Filter {
+    public static final String ETAG_ATTRIBUTE = "com.vacation.filter.etag:";
+    public static final String NO_STORE_ATTRIBUTE = "com.vacation.filter.noStore";
+
+    private static final int DEFAULT_MAX_ENTRIES = 32;
+    private static final int DEFAULT_MAX_ENTRY_BYTES = 4 * 1024 * 1024;
+
+    private ServletContext context;
+    private LruCache<String, CachedResponse> cache;
+    private int maxEntryBytes;
+
+    // Compressed body and the headers needed to replay it
+    private static class CachedResponse {
+        private final byte[] body;
+        private final String contentType;
+        private final String etag;
+        private final long lastModified;
+
+        private CachedResponse(byte[] body, String contentType, String etag, long lastModified) {
+            this.body = body;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.lastModified = lastModified;
+        }
+    }
+
+    @Override
+    public void init(FilterConfig config) {
+        context = config.getServletContext();
+        cache = new LruCache<>(intParameter(config, "maxEntries", DEFAULT_MAX_ENTRIES));
+        maxEntryBytes = intParameter(config, "maxEntryBytes", DEFAULT_MAX_ENTRY_BYTES);
+    }
+
+    @Override
+    public void doFilter(ServletRequest req, ServletResponse resp, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest request = (HttpServletRequest) req;
+        HttpServletResponse response = (HttpServletResponse) resp;
+        if (!"GET".equals(request.getMethod())) {
+            chain.doFilter(req, resp);
+            return;
+        }
+        // Any GET response may come compressed: shared caches must not serve the identity copy
+        // to gzip clients, nor the gzip copy to clients without it
+        response.addHeader("Vary", "Accept-Encoding");
+        String encoding = negotiate(request.getHeader("Accept-Encoding"));
+        if (encoding == null) {
+            chain.doFilter(req, resp);
+            return;
+        }
+
+        String url = request.getRequestURI() + (request.getQueryString() != null ? "?" + request.getQueryString() : "");
+        boolean conditional = request.getHeader("If-None-Match") != null
+            || request.getHeader("If-Modified-Since") != null;
+        if (!conditional) {
+            // Conditional requests go to the servlet, which answers 304 cheaply
+            String etag = currentETag(request);
+            CachedResponse cached = etag != null ? cache.get(key(url, encoding, etag)) : null;
+            if (cached != null) {
+                replay(response, encoding, cached);
+                return;
+            }
+        }
+
+        CompressingResponse wrapper = new CompressingResponse(response, encoding);
+        try {
+            chain.doFilter(new StrippedETagRequest(request, encoding), wrapper);
+        } finally {
+            wrapper.finish();
+        }
+
+        byte[] body = wrapper.getCompressedCopy();
+        boolean noStore = wrapper.noStore || request.getAttribute(NO_STORE_ATTRIBUTE) != null;
+        if (body != null && !noStore && wrapper.getStatus() == HttpServletResponse.SC_OK && wrapper.etag != null) {
+            cache.put(key(url, encoding, wrapper.etag),
+                new CachedResponse(body, wrapper.getContentType(), wrapper.etag, wrapper.lastModified));
+        }
+    }
+
+    @Override
+    public void destroy() {
+        cache.clear();
+    }
+
+    // "gzip", "deflate" or null, honouring q=0
+    static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) return null;
+        boolean deflate = false;
+        for (String part : acceptEncoding.split(",")) {
+            String[] tokens = part.trim().split(";");
+            String coding = tokens[0].trim().toLowerCase();
+            if (tokens.length > 1 && tokens[1].trim().replace(" ", "").matches("q=0(\\.0*)?")) continue;
+            if (coding.equals("gzip") || coding.equals("x-gzip") || coding.equals("*")) return "gzip";
+            if (coding.equals("deflate")) deflate = true;
+        }
+        return deflate ? "deflate" : null;
+    }
+
+    private String currentETag(HttpServletRequest request) {
+        HttpServletMapping mapping = request.getHttpServletMapping();
+        Object supplier = mapping != null ? context.getAttribute(ETAG_ATTRIBUTE + mapping.getServletName()) : null;
+        return supplier instanceof Supplier ? (String) ((Supplier<?>) supplier).get() : null;
+    }
+
+    private static String key(String url, String encoding, String etag) {
+        return url + "|" + encoding + "|" + etag;
+    }
+
+    private static void replay(HttpServletResponse response, String encoding, CachedResponse cached)
+            throws IOException {
+        response.setStatus(HttpServletResponse.SC_OK);
+        if (cached.contentType != null) {
+            response.setContentType(cached.contentType);
+        }
+        response.setHeader("Content-Encoding", encoding);
+        response.setHeader("ETag", withEncoding(cached.etag, encoding));
+        if (cached.lastModified > 0) {
+            response.setDateHeader("Last-Modified", cached.lastModified);
+        }
+        response.setHeader("Cache-Control", "no-cache");
+        response.setContentLength(cached.body.length);
+        response.getOutputStream().write(cached.body);
+    }
+
+    // "abc" -> "abc-gzip" (inside the quotes)
+    static String withEncoding(String etag, String encoding) {
+        if (etag.endsWith("\"")) {
+            return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+        }
+        return etag + "-" + encoding;
+    }
+
+    private static int intParameter(FilterConfig config, String name, int defaultValue) {
+        String value = config.getInitParameter(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    // Hides the encoding suffix of our own ETags from the servlet's If-None-Match check
+    private static class StrippedETagRequest extends HttpServletRequestWrapper {
+        private final String suffix;
+
+        StrippedETagRequest(HttpServletRequest request, String encoding) {
+            super(request);
+            this.suffix = "-" + encoding + "\"";
+        }
+
+        @Override
+        public String getHeader(String name) {
+            String value = super.getHeader(name);
+            if (value != null && "If-None-Match".equalsIgnoreCase(name)) {
+                value = value.replace(suffix, "\"");
+            }
+            return value;
+        }
+    }
+
+    // Compresses the body on the fly and keeps a copy of the compressed bytes up to maxEntryBytes
+    private class CompressingResponse extends HttpServletResponseWrapper {
+        private final String encoding;
+        private ServletOutputStream output;
+        private PrintWriter writer;
+        private OutputStream compressor;
+        private ByteArrayOutputStream copy = new ByteArrayOutputStream();
+        private boolean passThrough;
+        private String etag;
+        private long lastModified;
+        private boolean noStore;
+
+        CompressingResponse(HttpServletResponse response, String encoding) {
+            super(response);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if ("ETag".equalsIgnoreCase(name)) {
+                etag = value;
+                value = withEncoding(value, encoding);
+            }
+            if ("Cache-Control".equalsIgnoreCase(name) && value != null && value.contains("no-store")) {
+                noStore = true;
+            }
+            if ("Content-Length".equalsIgnoreCase(name)) return;
+            super.setHeader(name, value);
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if ("ETag".equalsIgnoreCase(name)) {
+                setHeader(name, value);
+                return;
+            }
+            if ("Cache-Control".equalsIgnoreCase(name) && value != null && value.contains("no-store")) {
+                noStore = true;
+            }
+            if ("Content-Length".equalsIgnoreCase(name)) return;
+            super.addHeader(name, value);
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+            if ("Last-Modified".equalsIgnoreCase(name)) lastModified = date;
+            super.setDateHeader(name, date);
+        }
+
+        // The length of the compressed body is not known up front
+        @Override
+        public void setContentLength(int length) {
+        }
+
+        @Override
+        public void setContentLengthLong(long length) {
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException {
+            if (writer != null) throw new IllegalStateException("getWriter() already called");
+            if (output == null) output = new CompressingStream();
+            return output;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException {
+            if (writer == null) {
+                if (output != null) throw new IllegalStateException("getOutputStream() already called");
+                output = new CompressingStream();
+                writer = new PrintWriter(new OutputStreamWriter(output, getCharacterEncoding()));
+            }
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException {
+            if (writer != null) writer.flush();
+            else if (output != null) output.flush();
+            super.flushBuffer();
+        }
+
+        // Compressed bytes of a complete, small enough body; null otherwise
+        byte[] getCompressedCopy() {
+            return copy != null && compressor != null && !passThrough ? copy.toByteArray() : null;
+        }
+
+        void finish() throws IOException {
+            if (writer != null) writer.flush();
+            if (compressor != null) compressor.close();
+        }
+
+        // Decided on the first byte: by then the servlet has set status and content type
+        private OutputStream target() throws IOException {
+            if (compressor == null) {
+                OutputStream raw = getResponse().getOutputStream();
+                if (!isCompressible(getContentType())) {
+                    passThrough = true;
+                    compressor = raw;
+                } else {
+                    super.setHeader("Content-Encoding", encoding);
+                    OutputStream tee = new TeeStream(raw);
+                    compressor = encoding.equals("gzip")
+                        ? new GZIPOutputStream(tee, 8192, true)
+                        : new DeflaterOutputStream(tee, new Deflater(), 8192, true);
+                }
+            }
+            return compressor;
+        }
+
+        private boolean isCompressible(String contentType) {
+            if (contentType == null) return false;
+            String type = contentType.toLowerCase();
+            return type.startsWith("text/") || type.contains("json") || type.contains("xml")
+                || type.contains("javascript");
+        }
+
+        private class CompressingStream extends ServletOutputStream {
+            @Override
+            public void write(int b) throws IOException {
+                target().write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                if (length > 0) target().write(bytes, offset, length);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                if (compressor != null) compressor.flush();
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            // Non-blocking writes would go around the compressor: servlets behind this filter
+            // must write synchronously
+            @Override
+            public void setWriteListener(WriteListener listener) {
+                throw new IllegalStateException("Async output is not supported through CompressionFilter");
+            }
+        }
+
+        // Writes to the client and keeps a copy until it grows beyond maxEntryBytes
+        private class TeeStream extends FilterOutputStream {
+            TeeStream(OutputStream out) {
+                super(out);
+            }
+
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                keep(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                out.write(bytes, offset, length);
+                keep(bytes, offset, length);
+            }
+
+            private void keep(byte[] bytes, int offset, int length) {
+                if (copy == null) return;
+                if (copy.size() + length > maxEntryBytes) {
+                    copy = null;
+                } else {
+                    copy.write(bytes, offset, length);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package com.vacation.model;
+
+import java.util.List;
+
+// One page of a listing. nextCursor is null on the last page.
+public class Page<T> {
+    private final List<T> items;
+    private final String nextCursor;
+
+    public Page(List<T> items, String nextCursor) {
+        this.items = items;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<T> getItems() {
+        return items;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
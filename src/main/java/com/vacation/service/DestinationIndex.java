@@ -0,0 +1,204 @@
+package com.vacation.service;
+
+import com.vacation.model.Destination;
+
+import java.util.*;
+
+// Immutable, typed view of the destinations, derived by each snapshot on first use.
+// Lookups are served from the prepared structures instead of walking the DOM.
+// withDestinations() derives the index of a larger snapshot from this one: the additions are
+// sorted on their own and inserted into copies of the sorted arrays, nothing is sorted again.
+public class DestinationIndex implements DestinationLookup {
+    private final List<Destination> destinations;
+    private final Destination[] byBudget;
+    private final double[] budgets;
+    private final Destination[] byId;
+    private final int[] ids;
+    private final Map<String, Destination> byName;
+    private final Map<String, List<Destination>> byActivity;
+
+    public DestinationIndex(List<Destination> destinations) {
+        this.destinations = Collections.unmodifiableList(new ArrayList<>(destinations));
+
+        // Budget-sorted array (stable, so equal budgets keep document order)
+        byBudget = destinations.toArray(new Destination[0]);
+        Arrays.sort(byBudget, Comparator.comparingDouble(Destination::getBudget));
+        budgets = new double[byBudget.length];
+        for (int i = 0; i < byBudget.length; i++) {
+            budgets[i] = byBudget[i].getBudget();
+        }
+
+        // Id-sorted array, the ordered index behind keyset pagination
+        byId = destinations.toArray(new Destination[0]);
+        Arrays.sort(byId, Comparator.comparingInt(Destination::getId));
+        ids = new int[byId.length];
+        for (int i = 0; i < byId.length; i++) {
+            ids[i] = byId[i].getId();
+        }
+
+        // Name index (first destination in document order wins, like //destination[name=...])
+        Map<String, Destination> names = new HashMap<>();
+        // Activity -> destinations inverted index
+        Map<String, List<Destination>> activities = new HashMap<>();
+        for (Destination dest : destinations) {
+            names.putIfAbsent(dest.getName(), dest);
+            addActivity(activities, dest.getActivity1(), dest);
+            if (!Objects.equals(dest.getActivity1(), dest.getActivity2())) {
+                addActivity(activities, dest.getActivity2(), dest);
+            }
+        }
+        for (Map.Entry<String, List<Destination>> entry : activities.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+        }
+        byName = names;
+        byActivity = activities;
+    }
+
+    private DestinationIndex(List<Destination> destinations, Destination[] byBudget, Destination[] byId,
+                             Map<String, Destination> byName, Map<String, List<Destination>> byActivity) {
+        this.destinations = destinations;
+        this.byBudget = byBudget;
+        this.budgets = new double[byBudget.length];
+        for (int i = 0; i < byBudget.length; i++) {
+            budgets[i] = byBudget[i].getBudget();
+        }
+        this.byId = byId;
+        this.ids = new int[byId.length];
+        for (int i = 0; i < byId.length; i++) {
+            ids[i] = byId[i].getId();
+        }
+        this.byName = byName;
+        this.byActivity = byActivity;
+    }
+
+    // Index of all, which is this index's destinations with added appended (immutable, not copied)
+    public DestinationIndex withDestinations(List<Destination> all, List<Destination> added) {
+        Map<String, Destination> names = new HashMap<>(byName);
+        Map<String, List<Destination>> additions = new HashMap<>();
+        for (Destination dest : added) {
+            names.putIfAbsent(dest.getName(), dest);
+            addActivity(additions, dest.getActivity1(), dest);
+            if (!Objects.equals(dest.getActivity1(), dest.getActivity2())) {
+                addActivity(additions, dest.getActivity2(), dest);
+            }
+        }
+        // Copy on write: only the activities of the added destinations get new lists
+        Map<String, List<Destination>> activities = new HashMap<>(byActivity);
+        for (Map.Entry<String, List<Destination>> entry : additions.entrySet()) {
+            List<Destination> list = new ArrayList<>(activities.getOrDefault(entry.getKey(), Collections.emptyList()));
+            list.addAll(entry.getValue());
+            activities.put(entry.getKey(), Collections.unmodifiableList(list));
+        }
+        return new DestinationIndex(all,
+            insert(byBudget, added, Comparator.comparingDouble(Destination::getBudget)),
+            insert(byId, added, Comparator.comparingInt(Destination::getId)),
+            names, activities);
+    }
+
+    // Copy of a sorted array with the added destinations inserted in order. Each one goes after
+    // the entries it ties with, which come earlier in document order.
+    private static Destination[] insert(Destination[] sorted, List<Destination> added, Comparator<Destination> order) {
+        Destination[] extra = added.toArray(new Destination[0]);
+        Arrays.sort(extra, order);
+        Destination[] merged = new Destination[sorted.length + extra.length];
+        int from = 0;
+        int size = 0;
+        for (Destination dest : extra) {
+            // First entry ordered after dest, by binary search over the part not yet copied
+            int low = from;
+            int high = sorted.length;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (order.compare(sorted[mid], dest) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            System.arraycopy(sorted, from, merged, size, low - from);
+            size += low - from;
+            from = low;
+            merged[size++] = dest;
+        }
+        System.arraycopy(sorted, from, merged, size, sorted.length - from);
+        return merged;
+    }
+
+    // All destinations, in document order
+    @Override
+    public List<Destination> getAll() {
+        return destinations;
+    }
+
+    // Destinations with budget <= maxBudget, in ascending budget order
+    @Override
+    public List<Destination> getByMaxBudget(double maxBudget) {
+        int count = upperBound(maxBudget);
+        return Collections.unmodifiableList(Arrays.asList(byBudget).subList(0, count));
+    }
+
+    // Destination with the given name, or null
+    @Override
+    public Destination getByName(String name) {
+        return byName.get(name);
+    }
+
+    // Destinations offering the given activity (activity1 or activity2), in document order
+    @Override
+    public List<Destination> getByActivity(String activity) {
+        return byActivity.getOrDefault(activity, Collections.emptyList());
+    }
+
+    // Up to limit destinations with id > afterId, in ascending id order
+    public List<Destination> getPageAfter(int afterId, int limit) {
+        int from = upperBound(ids, afterId);
+        int to = (int) Math.min((long) from + limit, ids.length);
+        return Collections.unmodifiableList(Arrays.asList(byId).subList(from, to));
+    }
+
+    // All distinct activities
+    public Set<String> getActivities() {
+        return Collections.unmodifiableSet(byActivity.keySet());
+    }
+
+    public int size() {
+        return destinations.size();
+    }
+
+    // Number of entries in the id-sorted array with id <= value
+    private static int upperBound(int[] ids, int value) {
+        int low = 0;
+        int high = ids.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (ids[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Number of entries in the budget-sorted array with budget <= value
+    private int upperBound(double value) {
+        int low = 0;
+        int high = budgets.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (budgets[mid] <= value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static void addActivity(Map<String, List<Destination>> activities, String activity,
+                                    Destination dest) {
+        // Empty elements have no text() node, so they never showed up as activities
+        if (activity == null || activity.isEmpty()) return;
+        activities.computeIfAbsent(activity, key -> new ArrayList<>()).add(dest);
+    }
+}
@@ -0,0 +1,17 @@
+package com.vacation.service;
+
+import com.vacation.model.Destination;
+
+import java.util.List;
+
+// Read-side destination queries, implemented by the in-memory index and by the XPath engines
+public interface DestinationLookup {
+    List<Destination> getAll();
+
+    // Ascending budget, ties in document order, whatever the engine
+    List<Destination> getByMaxBudget(double maxBudget);
+
+    Destination getByName(String name);
+
+    List<Destination> getByActivity(String activity);
+}
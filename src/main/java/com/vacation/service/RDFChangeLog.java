@@ -0,0 +1,218 @@
+package com.vacation.service;
+
+import org.apache.jena.graph.Node;
+import org.apache.jena.rdfpatch.RDFChanges;
+import org.apache.jena.rdfpatch.RDFPatchOps;
+import org.apache.jena.rdfpatch.text.RDFChangesWriterText;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+// Append-only log of RDF changes in RDF Patch text format, one TX ... TC block per committed
+// write transaction. Registered as the RDFChanges listener of the dataset
+// (RDFPatchOps.changes), it records the triples added and deleted by a transaction and
+// appends them, with one fsync, when it commits; aborted transactions leave no trace.
+// Compaction moves the log aside (rotate) while the caller writes a full snapshot, then drops it.
+public class RDFChangeLog implements RDFChanges, Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(RDFChangeLog.class);
+    private static final byte[] COMMIT = "TC .\n".getBytes(StandardCharsets.US_ASCII);
+
+    // Changes of the transaction running on this thread
+    private static class Pending {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private final RDFChangesWriterText writer = RDFChangesWriterText.create(buffer);
+        private boolean changed;
+    }
+
+    private final Path path;
+    private final Path rotated;
+    private final ThreadLocal<Pending> pending = new ThreadLocal<>();
+    private FileChannel channel;
+
+    public RDFChangeLog(Path path) {
+        this.path = path;
+        this.rotated = Paths.get(path + ".old");
+    }
+
+    // Apply the logged changes (a rotated log left by an interrupted compaction first) to the
+    // dataset, drop a torn trailing transaction, then open for appending
+    public synchronized void open(DatasetGraph target) throws IOException {
+        if (Files.exists(rotated)) {
+            replay(rotated, target);
+        }
+        long validLength = Files.exists(path) ? replay(path, target) : 0;
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+        if (channel.size() > validLength) {
+            LOG.warn("Truncating incomplete transaction at the end of {}", path);
+            channel.truncate(validLength);
+            channel.force(true);
+        }
+        channel.position(validLength);
+    }
+
+    // Applies the complete transactions of a log file; returns their length in bytes
+    private static long replay(Path file, DatasetGraph target) throws IOException {
+        byte[] data = Files.readAllBytes(file);
+        int validLength = lastCommitEnd(data);
+        if (validLength > 0) {
+            RDFPatchOps.applyChange(target, new ByteArrayInputStream(data, 0, validLength));
+        }
+        return validLength;
+    }
+
+    // Offset just past the last "TC ." line
+    private static int lastCommitEnd(byte[] data) {
+        for (int end = data.length; end >= COMMIT.length; end--) {
+            boolean match = true;
+            for (int i = 0; i < COMMIT.length && match; i++) {
+                match = data[end - COMMIT.length + i] == COMMIT[i];
+            }
+            if (match && (end == COMMIT.length || data[end - COMMIT.length - 1] == '\n')) {
+                return end;
+            }
+        }
+        return 0;
+    }
+
+    public synchronized boolean isOpen() {
+        return channel != null;
+    }
+
+    // Bytes currently in the log
+    public synchronized long size() {
+        try {
+            return channel != null ? channel.size() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // Move the logged changes aside, to be dropped once a snapshot containing them is written.
+    // The caller must make sure no write transaction is running.
+    public synchronized void rotate() throws IOException {
+        checkOpen();
+        if (channel.size() == 0) return;
+        // A rotated log still there belongs to a failed compaction: keep both, in order
+        try (FileChannel old = FileChannel.open(rotated, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            channel.transferTo(0, channel.size(), old);
+            old.force(true);
+        }
+        channel.truncate(0);
+        channel.position(0);
+        channel.force(true);
+    }
+
+    // The snapshot is on disk: the rotated changes are no longer needed
+    public synchronized void dropRotated() throws IOException {
+        Files.deleteIfExists(rotated);
+    }
+
+    // Append the changes of a committed transaction; one fsync per transaction
+    private synchronized void append(byte[] data) {
+        checkOpen();
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot append to " + path, e);
+        }
+    }
+
+    // Changes made before open() or after close() could not be made durable
+    private void checkOpen() {
+        if (channel == null) {
+            throw new IllegalStateException("Change log " + path + " is not open");
+        }
+    }
+
+    @Override
+    public void txnBegin() {
+        Pending current = new Pending();
+        current.writer.txnBegin();
+        pending.set(current);
+    }
+
+    @Override
+    public void add(Node g, Node s, Node p, Node o) {
+        Pending current = pending.get();
+        if (current != null) {
+            current.writer.add(g, s, p, o);
+            current.changed = true;
+        }
+    }
+
+    @Override
+    public void delete(Node g, Node s, Node p, Node o) {
+        Pending current = pending.get();
+        if (current != null) {
+            current.writer.delete(g, s, p, o);
+            current.changed = true;
+        }
+    }
+
+    @Override
+    public void txnCommit() {
+        Pending current = pending.get();
+        pending.remove();
+        // Read transactions commit too; they have nothing to log
+        if (current == null || !current.changed) return;
+        current.writer.txnCommit();
+        current.writer.finish();
+        current.writer.close();
+        append(current.buffer.toByteArray());
+    }
+
+    @Override
+    public void txnAbort() {
+        pending.remove();
+    }
+
+    // Prefixes and headers are not logged: snapshots carry the prefixes
+
+    @Override
+    public void header(String field, Node value) {
+    }
+
+    @Override
+    public void addPrefix(Node gn, String prefix, String uriStr) {
+    }
+
+    @Override
+    public void deletePrefix(Node gn, String prefix) {
+    }
+
+    @Override
+    public void segment() {
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void finish() {
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -1,136 +1,526 @@
 package com.vacation.service;
 
 import com.vacation.model.Destination;
+import com.vacation.model.Page;
+import com.vacation.util.PageCursor;
+import org.apache.jena.graph.Node;
+import org.apache.jena.graph.NodeFactory;
 import org.apache.jena.query.*;
 import org.apache.jena.rdf.model.*;
+import org.apache.jena.rdfpatch.RDFPatchOps;
 import org.apache.jena.riot.RDFDataMgr;
 import org.apache.jena.riot.RDFFormat;
+import org.apache.jena.sparql.algebra.Algebra;
+import org.apache.jena.sparql.algebra.Op;
+import org.apache.jena.sparql.core.DatasetGraph;
+import org.apache.jena.sparql.core.DatasetGraphFactory;
+import org.apache.jena.sparql.core.ResultBinding;
+import org.apache.jena.sparql.core.Substitute;
+import org.apache.jena.sparql.core.Var;
+import org.apache.jena.sparql.engine.QueryIterator;
+import org.apache.jena.sparql.engine.binding.BindingFactory;
+import org.apache.jena.system.Txn;
+import org.apache.jena.tdb2.TDB2Factory;
+import org.apache.jena.tdb2.loader.DataLoader;
+import org.apache.jena.tdb2.loader.LoaderFactory;
+import org.apache.jena.tdb2.loader.base.LoaderOps;
 import org.apache.jena.vocabulary.RDF;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+// RDF data behind a transactional Dataset: reads run in read transactions and see a consistent
+// state, writes run one at a time in write transactions.
+// Store "memory" (default): in-memory dataset. Committed changes are appended to an RDF Patch
+// log (destinations.rdf.patch) and compacted into destinations.rdf in the background.
+// Store "tdb2": persistent TDB2 database; a commit only writes the changed triples and startup
+// opens the database instead of parsing RDF/XML. An empty database is bulk-loaded from
+// destinations.rdf on first start.
+public class RDFService implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(RDFService.class);
+
+    // Settings (servlet init-params)
+    // Backing store: "memory" (default) or "tdb2"
+    public static final String STORE = "rdf.store";
+    // TDB2 database directory (default data/tdb2 next to destinations.rdf)
+    public static final String TDB2_DIRECTORY = "rdf.tdb2Directory";
+    // In-memory store: seconds between compactions of destinations.rdf.patch into destinations.rdf
+    public static final String COMPACTION_INTERVAL = "rdf.compactionIntervalSeconds";
+    // SPARQL result cache: number of results and memory budget (bytes)
+    public static final String SPARQL_CACHE_ENTRIES = "rdf.sparqlCacheEntries";
+    public static final String SPARQL_CACHE_BYTES = "rdf.sparqlCacheBytes";
+    // Ad-hoc SPARQL: wall-clock limit per query, row cap, queries run at once and queries
+    // allowed to wait for a slot (more are rejected)
+    public static final String SPARQL_TIMEOUT = "rdf.sparqlTimeoutSeconds";
+    public static final String SPARQL_MAX_ROWS = "rdf.sparqlMaxRows";
+    public static final String SPARQL_MAX_CONCURRENT = "rdf.sparqlMaxConcurrent";
+    public static final String SPARQL_MAX_QUEUED = "rdf.sparqlMaxQueued";
 
-public class RDFService {
     private static final String NAMESPACE = "http://www.vacation.com/ontology#";
     private static final String RESOURCE_BASE = "http://www.vacation.com/";
 
-    private Model model;
+    // Keyset pagination over (name, uri), one row per key. Parsed once; the key of the previous
+    // page is bound by substitution. With ORDER BY + LIMIT, ARQ keeps a top-N heap instead of
+    // sorting everything.
+    private static final String DESTINATIONS_PAGE =
+        "PREFIX vac: <" + NAMESPACE + "> " +
+        "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> " +
+        "SELECT ?dest ?name (SAMPLE(?d) AS ?description) (SAMPLE(?b) AS ?budget) " +
+        "       (SAMPLE(?t) AS ?duration) " +
+        "WHERE { " +
+        "  ?dest rdf:type vac:Destination . " +
+        "  ?dest vac:name ?name . " +
+        "  OPTIONAL { ?dest vac:description ?d } " +
+        "  OPTIONAL { ?dest vac:budget ?b } " +
+        "  OPTIONAL { ?dest vac:duration ?t } ";
+    private static final String PAGE_ORDER = "} GROUP BY ?dest ?name ORDER BY ?name STR(?dest)";
+    private static final Query FIRST_PAGE_QUERY = QueryFactory.create(DESTINATIONS_PAGE + PAGE_ORDER);
+    private static final Query NEXT_PAGE_QUERY = QueryFactory.create(
+        DESTINATIONS_PAGE +
+        "  FILTER (?name > ?afterName || (?name = ?afterName && STR(?dest) > ?afterUri)) " +
+        PAGE_ORDER);
+
+    // Built-in queries, parsed once. Request values never reach the query text: they are bound
+    // to variables (?dest, ?name) when the query runs.
+    private static final Query ALL_DESTINATIONS_QUERY = QueryFactory.create(
+        "PREFIX vac: <" + NAMESPACE + "> " +
+        "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> " +
+        "SELECT ?dest ?name ?description ?budget ?duration " +
+        "WHERE { " +
+        "  ?dest rdf:type vac:Destination . " +
+        "  ?dest vac:name ?name . " +
+        "  OPTIONAL { ?dest vac:description ?description } " +
+        "  OPTIONAL { ?dest vac:budget ?budget } " +
+        "  OPTIONAL { ?dest vac:duration ?duration } " +
+        "} ORDER BY ?name");
+    // The point lookups behind /destination and /requirements are also compiled and optimised
+    // once; each call only substitutes its constant into the algebra
+    private static final Op DETAILS_OP = compile(
+        "SELECT ?property ?value " +
+        "WHERE { " +
+        "  ?dest ?property ?value . " +
+        "}");
+    private static final Op REQUIREMENTS_OP = compile(
+        "PREFIX vac: <" + NAMESPACE + "> " +
+        "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> " +
+        "SELECT ?dest ?budget ?duration ?activity " +
+        "WHERE { " +
+        "  ?dest rdf:type vac:Destination . " +
+        "  ?dest vac:name ?name . " +
+        "  ?dest vac:budget ?budget . " +
+        "  ?dest vac:duration ?duration . " +
+        "  ?dest vac:hasActivity ?activity . " +
+        "}");
+
+    private final Dataset dataset;
+    // View of the dataset's default graph; only use it inside a transaction
+    private final Model model;
+    private final boolean persistent;
+    // In-memory store only: the same data without change tracking (loading, uploads),
+    // and the log the tracked writes go to
+    private final Dataset storage;
+    private final RDFChangeLog changeLog;
+    private final ScheduledExecutorService compactor;
+    // Held by write transactions and while the change log is rotated
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Object snapshotLock = new Object();
+    // Results of /sparql queries, keyed by algebra and data version
+    private final SPARQLResultCache resultCache;
+    // Admission control for /sparql: a slot per running query, a bounded number of waiters
+    private final long sparqlTimeoutMillis;
+    private final int sparqlMaxRows;
+    private final int sparqlMaxConcurrent;
+    private final int sparqlMaxQueued;
+    private final Semaphore sparqlSlots;
+    private final AtomicInteger sparqlWaiting = new AtomicInteger();
+    private final AtomicLong sparqlRejected = new AtomicLong();
+    private final AtomicLong sparqlTimedOut = new AtomicLong();
     private String rdfFilePath;
+    // Data version, bumped on every load, upload and change. The epoch tells restarts apart.
+    private final long epoch = System.currentTimeMillis();
+    private final AtomicLong version = new AtomicLong();
+    private volatile long lastModified;
+    // Set when the snapshot or the change log could not be read: the store is then incomplete,
+    // so writes, uploads and snapshots are refused rather than overwriting the file with it
+    private volatile Exception loadFailure;
 
     public RDFService(String contextPath) {
+        this(contextPath, new Properties());
+    }
+
+    public RDFService(String contextPath, Properties settings) {
         this.rdfFilePath = contextPath + "/data/destinations.rdf";
+        this.resultCache = new SPARQLResultCache(
+            Integer.parseInt(settings.getProperty(SPARQL_CACHE_ENTRIES, "64")),
+            Long.parseLong(settings.getProperty(SPARQL_CACHE_BYTES, String.valueOf(16 * 1024 * 1024))));
+        this.sparqlTimeoutMillis = 1000L * Integer.parseInt(settings.getProperty(SPARQL_TIMEOUT, "30"));
+        this.sparqlMaxRows = Integer.parseInt(settings.getProperty(SPARQL_MAX_ROWS, "10000"));
+        this.sparqlMaxQueued = Integer.parseInt(settings.getProperty(SPARQL_MAX_QUEUED, "16"));
+        this.sparqlMaxConcurrent = Integer.parseInt(settings.getProperty(SPARQL_MAX_CONCURRENT,
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+        this.sparqlSlots = new Semaphore(sparqlMaxConcurrent, true);
+        String store = settings.getProperty(STORE, "memory");
+        if (store.equals("tdb2")) {
+            String directory = settings.getProperty(TDB2_DIRECTORY, contextPath + "/data/tdb2");
+            persistent = true;
+            dataset = TDB2Factory.connectDataset(directory);
+            storage = dataset;
+            changeLog = null;
+            compactor = null;
+            LOG.info("RDF store: TDB2 database in {}", directory);
+        } else if (store.equals("memory")) {
+            persistent = false;
+            DatasetGraph base = DatasetGraphFactory.createTxnMem();
+            changeLog = new RDFChangeLog(Paths.get(rdfFilePath + ".patch"));
+            storage = DatasetFactory.wrap(base);
+            dataset = DatasetFactory.wrap(RDFPatchOps.changes(base, changeLog));
+            int interval = Integer.parseInt(settings.getProperty(COMPACTION_INTERVAL, "60"));
+            compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "rdf-compactor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            compactor.scheduleWithFixedDelay(this::compactIfNeeded, interval, interval, TimeUnit.SECONDS);
+        } else {
+            throw new IllegalArgumentException("Unknown " + STORE + ": " + store);
+        }
+        model = dataset.getDefaultModel();
         loadRDF();
     }
 
-    // Load RDF file
+    // Load RDF file. A TDB2 database already holds the data and is only loaded when empty.
+    // The in-memory store reads the last snapshot and replays the change log over it, even when
+    // the snapshot is missing or unreadable, so the logged changes are still served.
     public void loadRDF() {
+        Exception failure = null;
         try {
-            model = ModelFactory.createDefaultModel();
             File file = new File(rdfFilePath);
-            if (file.exists()) {
-                try (InputStream in = new FileInputStream(file)) {
-                    model.read(in, null, "RDF/XML");
+            if (persistent) {
+                if (read(() -> model.isEmpty()) && file.exists()) {
+                    bulkLoad(file);
+                }
+            } else {
+                Model target = storage.getDefaultModel();
+                try {
+                    write(storage, () -> {
+                        target.removeAll();
+                        if (file.exists()) {
+                            try (InputStream in = new FileInputStream(file)) {
+                                target.read(in, null, "RDF/XML");
+                            } catch (IOException e) {
+                                throw new UncheckedIOException(e);
+                            }
+                        }
+                    });
+                } catch (Exception e) {
+                    failure = e;
+                    LOG.error("Cannot load {}, writes are refused until it loads", rdfFilePath, e);
+                }
+                if (!changeLog.isOpen()) {
+                    changeLog.open(storage.asDatasetGraph());
                 }
             }
         } catch (Exception e) {
-            e.printStackTrace();
-            model = ModelFactory.createDefaultModel();
+            // Bulk load or change log failed: without the log, writes could not be made durable
+            if (failure == null) failure = e;
+            LOG.error("Cannot load the RDF store from {}, writes are refused", rdfFilePath, e);
+        } finally {
+            loadFailure = failure;
+            changed();
         }
     }
 
-    // Save RDF to file
+    // Writes are refused while the data on disk could not be loaded
+    private void checkWritable() {
+        Exception failure = loadFailure;
+        if (failure != null) {
+            throw new IllegalStateException("Writes are disabled, loading " + rdfFilePath
+                + " or its change log failed: " + failure.getMessage(), failure);
+        }
+    }
+
+    // First start of a TDB2 database: the bulk loader writes the indexes directly
+    private void bulkLoad(File file) {
+        long start = System.currentTimeMillis();
+        DataLoader loader = LoaderFactory.createLoader(dataset.asDatasetGraph(), LoaderOps.outputToLog());
+        loader.startBulk();
+        try {
+            loader.load(file.getPath());
+            loader.finishBulk();
+        } catch (RuntimeException e) {
+            loader.finishException(e);
+            throw e;
+        }
+        LOG.info("Loaded {} triples from {} into TDB2 in {} ms", loader.countTriples(), file,
+            System.currentTimeMillis() - start);
+    }
+
+    // Save RDF to file: write a full snapshot and empty the change log.
+    // Writers only wait while the log is moved aside; the snapshot itself is written from a
+    // read transaction that started at that point, so it holds exactly the moved changes.
     public void saveRDF() {
-        try (OutputStream out = new FileOutputStream(rdfFilePath)) {
-            RDFDataMgr.write(out, model, RDFFormat.RDFXML_PRETTY);
-        } catch (Exception e) {
-            e.printStackTrace();
+        checkWritable();
+        synchronized (snapshotLock) {
+            writeLock.lock();
+            dataset.begin(TxnType.READ);
+            try {
+                try {
+                    if (changeLog != null) changeLog.rotate();
+                } finally {
+                    writeLock.unlock();
+                }
+                writeSnapshot();
+                if (changeLog != null) changeLog.dropRotated();
+            } catch (Exception e) {
+                LOG.error("Cannot write RDF snapshot, keeping the change log", e);
+            } finally {
+                dataset.end();
+            }
+        }
+    }
+
+    // Plain RDF/XML, written next to the file and moved over it
+    private void writeSnapshot() throws IOException {
+        long start = System.currentTimeMillis();
+        Path target = Paths.get(rdfFilePath);
+        Path temp = Paths.get(rdfFilePath + ".tmp");
+        try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(temp))) {
+            RDFDataMgr.write(out, model, RDFFormat.RDFXML_PLAIN);
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Wrote RDF snapshot {} in {} ms", target, System.currentTimeMillis() - start);
+    }
+
+    // Background compaction, only when there is something in the change log and the data it is
+    // compacted into was loaded
+    private void compactIfNeeded() {
+        if (loadFailure == null && changeLog.isOpen() && changeLog.size() > 0) {
+            saveRDF();
         }
     }
 
-    // Get model (for graph visualization)
+    // Get model (for graph visualization); only use it inside a transaction
     public Model getModel() {
         return model;
     }
 
-    // Load RDF from uploaded file
+    // Load RDF from uploaded file, replacing the current data
     public void loadRDFFromFile(InputStream inputStream) {
+        checkWritable();
         try {
-            model = ModelFactory.createDefaultModel();
-            model.read(inputStream, null, "RDF/XML");
-            saveRDF();
+            // Parse first, so a broken upload leaves the data untouched
+            Model uploaded = ModelFactory.createDefaultModel();
+            uploaded.read(inputStream, null, "RDF/XML");
+            // Replacing everything would log the whole graph twice: the in-memory store bypasses
+            // the change log and takes a snapshot right away instead
+            Model target = storage.getDefaultModel();
+            write(storage, () -> {
+                target.removeAll();
+                target.add(uploaded);
+            });
+            if (!persistent) {
+                saveRDF();
+            }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            changed();
         }
     }
 
-    // Get all destinations from RDF
-    public List<Map<String, String>> getAllDestinations() {
-        List<Map<String, String>> destinations = new ArrayList<>();
+    // Flush the change log into a snapshot and release the store
+    @Override
+    public void close() {
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (changeLog != null) {
+            if (loadFailure == null && changeLog.size() > 0) {
+                saveRDF();
+            }
+            try {
+                changeLog.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        dataset.close();
+    }
 
-        String queryString =
-            "PREFIX vac: <" + NAMESPACE + "> " +
-            "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> " +
-            "SELECT ?dest ?name ?description ?budget ?duration " +
-            "WHERE { " +
-            "  ?dest rdf:type vac:Destination . " +
-            "  ?dest vac:name ?name . " +
-            "  OPTIONAL { ?dest vac:description ?description } " +
-            "  OPTIONAL { ?dest vac:budget ?budget } " +
-            "  OPTIONAL { ?dest vac:duration ?duration } " +
-            "} ORDER BY ?name";
+    private <T> T read(Supplier<T> action) {
+        return Txn.calculateRead(dataset, action);
+    }
 
+    private void read(Runnable action) {
+        Txn.executeRead(dataset, action);
+    }
+
+    // Tracked write: in the in-memory store the changes go to the change log on commit
+    private void write(Runnable action) {
+        write(dataset, action);
+    }
+
+    private void write(Dataset target, Runnable action) {
+        writeLock.lock();
+        try {
+            Txn.executeWrite(target, action);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    // Current data version, incremented on every change
+    public long getDataVersion() {
+        return version.get();
+    }
+
+    // Opaque tag of the current data, unique across restarts (used for ETags)
+    public String getDataTag() {
+        return Long.toString(epoch, 36) + "-" + version.get();
+    }
+
+    // Time of the last change (milliseconds)
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    private void changed() {
+        lastModified = System.currentTimeMillis();
+        version.incrementAndGet();
+        // Entries of older versions can no longer be hit
+        resultCache.clear();
+    }
+
+    // Result cache statistics, plus admission and timeout counters
+    public Map<String, Object> getSPARQLStats() {
+        Map<String, Object> stats = resultCache.getStats();
+        stats.put("running", sparqlMaxConcurrent - sparqlSlots.availablePermits());
+        stats.put("queued", sparqlWaiting.get());
+        stats.put("rejected", sparqlRejected.get());
+        stats.put("timedOut", sparqlTimedOut.get());
+        return stats;
+    }
+
+    // Stream all destinations, ordered by name, one row at a time
+    public void forEachDestination(Consumer<Map<String, String>> action) {
         try {
-            Query query = QueryFactory.create(queryString);
-            try (QueryExecution qexec = QueryExecutionFactory.create(query, model)) {
+            read(() -> {
+                try (QueryExecution qexec = QueryExecutionFactory.create(ALL_DESTINATIONS_QUERY, model)) {
+                    ResultSet results = qexec.execSelect();
+                    while (results.hasNext()) {
+                        action.accept(toDestinationRow(results.nextSolution()));
+                    }
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // One page of destinations ordered by name then URI; cursor is null for the first page
+    public Page<Map<String, String>> getDestinationsPage(String cursor, int limit) {
+        Query query = (cursor != null ? NEXT_PAGE_QUERY : FIRST_PAGE_QUERY).cloneQuery();
+        // One extra row tells whether there is a next page
+        query.setLimit(limit + 1);
+        QueryExecutionDatasetBuilder builder = QueryExecution.model(model).query(query);
+        if (cursor != null) {
+            String[] key = PageCursor.decode(cursor, 2);
+            builder.substitution("afterName", ResourceFactory.createStringLiteral(key[0]));
+            builder.substitution("afterUri", ResourceFactory.createStringLiteral(key[1]));
+        }
+
+        List<Map<String, String>> items = new ArrayList<>();
+        read(() -> {
+            try (QueryExecution qexec = builder.build()) {
                 ResultSet results = qexec.execSelect();
                 while (results.hasNext()) {
-                    QuerySolution soln = results.nextSolution();
-                    Map<String, String> dest = new HashMap<>();
-                    dest.put("uri", soln.getResource("dest").getURI());
-                    dest.put("name", soln.getLiteral("name").getString());
-                    if (soln.contains("description"))
-                        dest.put("description", soln.getLiteral("description").getString());
-                    if (soln.contains("budget"))
-                        dest.put("budget", soln.getLiteral("budget").getString());
-                    if (soln.contains("duration"))
-                        dest.put("duration", soln.getLiteral("duration").getString());
-                    destinations.add(dest);
+                    items.add(toDestinationRow(results.nextSolution()));
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        });
+        if (items.size() <= limit) {
+            return new Page<>(items, null);
         }
+        List<Map<String, String>> page = items.subList(0, limit);
+        Map<String, String> last = page.get(limit - 1);
+        return new Page<>(page, PageCursor.encode(last.get("name"), last.get("uri")));
+    }
+
+    // Normalised form of a query: its optimised algebra (independent of layout, prefixes and
+    // comments) plus the dataset description, which the algebra does not carry
+    private static String cacheKey(Query query, long dataVersion) {
+        return dataVersion + "|" + query.getGraphURIs() + query.getNamedGraphURIs() + "|"
+            + Algebra.optimize(Algebra.compile(query));
+    }
+
+    private static Op compile(String queryString) {
+        return Algebra.optimize(Algebra.compile(QueryFactory.create(queryString)));
+    }
+
+    // Run pre-compiled algebra with one variable bound to a constant, in a read transaction
+    private void select(Op op, String variable, Node value, Consumer<QuerySolution> action) {
+        Op bound = Substitute.substitute(op, BindingFactory.binding(Var.alloc(variable), value));
+        read(() -> {
+            QueryIterator rows = Algebra.exec(bound, dataset.asDatasetGraph());
+            try {
+                while (rows.hasNext()) {
+                    action.accept(new ResultBinding(model, rows.nextBinding()));
+                }
+            } finally {
+                rows.close();
+            }
+        });
+    }
 
-        return destinations;
+    private static Map<String, String> toDestinationRow(QuerySolution soln) {
+        Map<String, String> dest = new HashMap<>();
+        dest.put("uri", soln.getResource("dest").getURI());
+        dest.put("name", soln.getLiteral("name").getString());
+        if (soln.contains("description"))
+            dest.put("description", soln.getLiteral("description").getString());
+        if (soln.contains("budget"))
+            dest.put("budget", soln.getLiteral("budget").getString());
+        if (soln.contains("duration"))
+            dest.put("duration", soln.getLiteral("duration").getString());
+        return dest;
     }
 
     // Get destination details by URI
     public Map<String, Object> getDestinationDetails(String destinationURI) {
         Map<String, Object> details = new HashMap<>();
 
-        String queryString =
-            "PREFIX vac: <" + NAMESPACE + "> " +
-            "SELECT ?property ?value " +
-            "WHERE { " +
-            "  <" + destinationURI + "> ?property ?value . " +
-            "}";
-
         try {
-            Query query = QueryFactory.create(queryString);
-            try (QueryExecution qexec = QueryExecutionFactory.create(query, model)) {
-                ResultSet results = qexec.execSelect();
-                while (results.hasNext()) {
-                    QuerySolution soln = results.nextSolution();
-                    String property = soln.getResource("property").getLocalName();
-                    RDFNode value = soln.get("value");
-
-                    if (value.isLiteral()) {
-                        details.put(property, value.asLiteral().getValue());
-                    } else if (value.isResource()) {
-                        details.put(property, value.asResource().getURI());
-                    }
+            select(DETAILS_OP, "dest", NodeFactory.createURI(destinationURI), soln -> {
+                String property = soln.getResource("property").getLocalName();
+                RDFNode value = soln.get("value");
+
+                if (value.isLiteral()) {
+                    details.put(property, value.asLiteral().getValue());
+                } else if (value.isResource()) {
+                    details.put(property, value.asResource().getURI());
                 }
-            }
+            });
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -142,34 +532,15 @@ public class RDFService {
     public Map<String, Object> getDestinationRequirements(String destinationName) {
         Map<String, Object> requirements = new HashMap<>();
 
-        String queryString =
-            "PREFIX vac: <" + NAMESPACE + "> " +
-            "PREFIX rdf: <http://www.w3.org/1999/02/22-rdf-syntax-ns#> " +
-            "SELECT ?dest ?budget ?duration ?activity " +
-            "WHERE { " +
-            "  ?dest rdf:type vac:Destination . " +
-            "  ?dest vac:name \"" + destinationName + "\" . " +
-            "  ?dest vac:budget ?budget . " +
-            "  ?dest vac:duration ?duration . " +
-            "  ?dest vac:hasActivity ?activity . " +
-            "}";
-
         try {
-            Query query = QueryFactory.create(queryString);
-            try (QueryExecution qexec = QueryExecutionFactory.create(query, model)) {
-                ResultSet results = qexec.execSelect();
-                List<String> activities = new ArrayList<>();
-
-                while (results.hasNext()) {
-                    QuerySolution soln = results.nextSolution();
-                    requirements.put("uri", soln.getResource("dest").getURI());
-                    requirements.put("budget", soln.getLiteral("budget").getValue());
-                    requirements.put("duration", soln.getLiteral("duration").getValue());
-                    activities.add(soln.getResource("activity").getURI());
-                }
-
-                requirements.put("activities", activities);
-            }
+            List<String> activities = new ArrayList<>();
+            select(REQUIREMENTS_OP, "name", NodeFactory.createLiteral(destinationName), soln -> {
+                requirements.put("uri", soln.getResource("dest").getURI());
+                requirements.put("budget", soln.getLiteral("budget").getValue());
+                requirements.put("duration", soln.getLiteral("duration").getValue());
+                activities.add(soln.getResource("activity").getURI());
+            });
+            requirements.put("activities", activities);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -180,123 +551,234 @@ public class RDFService {
     // Add new destination to RDF
     public void addDestination(String name, String description, double budget,
                               int duration, String activity1, String activity2) {
+        checkWritable();
         try {
-            // Create destination resource
-            String destURI = RESOURCE_BASE + "destinations/" + name.toLowerCase().replaceAll("\\s+", "-");
-            Resource destination = model.createResource(destURI);
+            write(() -> {
+                // Create destination resource
+                String destURI = RESOURCE_BASE + "destinations/" + name.toLowerCase().replaceAll("\\s+", "-");
+                Resource destination = model.createResource(destURI);
 
-            // Add properties
-            Property typeProperty = RDF.type;
-            Resource destinationType = model.createResource(NAMESPACE + "Destination");
-            destination.addProperty(typeProperty, destinationType);
+                // Add properties
+                Property typeProperty = RDF.type;
+                Resource destinationType = model.createResource(NAMESPACE + "Destination");
+                destination.addProperty(typeProperty, destinationType);
 
-            Property nameProperty = model.createProperty(NAMESPACE, "name");
-            destination.addProperty(nameProperty, name);
+                Property nameProperty = model.createProperty(NAMESPACE, "name");
+                destination.addProperty(nameProperty, name);
 
-            Property descProperty = model.createProperty(NAMESPACE, "description");
-            destination.addProperty(descProperty, description);
+                Property descProperty = model.createProperty(NAMESPACE, "description");
+                destination.addProperty(descProperty, description);
 
-            Property budgetProperty = model.createProperty(NAMESPACE, "budget");
-            destination.addProperty(budgetProperty, model.createTypedLiteral(budget));
+                Property budgetProperty = model.createProperty(NAMESPACE, "budget");
+                destination.addProperty(budgetProperty, model.createTypedLiteral(budget));
 
-            Property durationProperty = model.createProperty(NAMESPACE, "duration");
-            destination.addProperty(durationProperty, model.createTypedLiteral(duration));
+                Property durationProperty = model.createProperty(NAMESPACE, "duration");
+                destination.addProperty(durationProperty, model.createTypedLiteral(duration));
 
-            Property hasActivityProperty = model.createProperty(NAMESPACE, "hasActivity");
+                Property hasActivityProperty = model.createProperty(NAMESPACE, "hasActivity");
 
-            // Add activities
-            if (activity1 != null && !activity1.isEmpty()) {
-                String act1URI = RESOURCE_BASE + "activities/" + activity1.toLowerCase();
-                Resource activity1Res = model.createResource(act1URI);
-                destination.addProperty(hasActivityProperty, activity1Res);
+                // Add activities
+                if (activity1 != null && !activity1.isEmpty()) {
+                    String act1URI = RESOURCE_BASE + "activities/" + activity1.toLowerCase();
+                    Resource activity1Res = model.createResource(act1URI);
+                    destination.addProperty(hasActivityProperty, activity1Res);
 
-                // Create activity if it doesn't exist
-                if (!model.contains(activity1Res, null)) {
-                    activity1Res.addProperty(RDF.type, model.createResource(NAMESPACE + "Activity"));
-                    Property actNameProperty = model.createProperty(NAMESPACE, "activityName");
-                    activity1Res.addProperty(actNameProperty, activity1);
-                }
+                    // Create activity if it doesn't exist
+                    if (!model.contains(activity1Res, null)) {
+                        activity1Res.addProperty(RDF.type, model.createResource(NAMESPACE + "Activity"));
+                        Property actNameProperty = model.createProperty(NAMESPACE, "activityName");
+                        activity1Res.addProperty(actNameProperty, activity1);
+                    }
 
-                Property primaryActivityProperty = model.createProperty(NAMESPACE, "primaryActivity");
-                destination.addProperty(primaryActivityProperty, activity1Res);
-            }
+                    Property primaryActivityProperty = model.createProperty(NAMESPACE, "primaryActivity");
+                    destination.addProperty(primaryActivityProperty, activity1Res);
+                }
 
-            if (activity2 != null && !activity2.isEmpty()) {
-                String act2URI = RESOURCE_BASE + "activities/" + activity2.toLowerCase();
-                Resource activity2Res = model.createResource(act2URI);
-                destination.addProperty(hasActivityProperty, activity2Res);
+                if (activity2 != null && !activity2.isEmpty()) {
+                    String act2URI = RESOURCE_BASE + "activities/" + activity2.toLowerCase();
+                    Resource activity2Res = model.createResource(act2URI);
+                    destination.addProperty(hasActivityProperty, activity2Res);
 
-                // Create activity if it doesn't exist
-                if (!model.contains(activity2Res, null)) {
-                    activity2Res.addProperty(RDF.type, model.createResource(NAMESPACE + "Activity"));
-                    Property actNameProperty = model.createProperty(NAMESPACE, "activityName");
-                    activity2Res.addProperty(actNameProperty, activity2);
+                    // Create activity if it doesn't exist
+                    if (!model.contains(activity2Res, null)) {
+                        activity2Res.addProperty(RDF.type, model.createResource(NAMESPACE + "Activity"));
+                        Property actNameProperty = model.createProperty(NAMESPACE, "activityName");
+                        activity2Res.addProperty(actNameProperty, activity2);
+                    }
                 }
-            }
-
-            saveRDF();
+            });
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            changed();
         }
     }
 
     // Update destination in RDF
     public void updateDestination(String destinationURI, String property, String value) {
+        checkWritable();
         try {
-            Resource destination = model.getResource(destinationURI);
-            Property prop = model.createProperty(NAMESPACE, property);
+            write(() -> {
+                Resource destination = model.getResource(destinationURI);
+                Property prop = model.createProperty(NAMESPACE, property);
+
+                // Remove old value
+                model.removeAll(destination, prop, null);
+
+                // Add new value
+                if (property.equals("budget") || property.equals("duration")) {
+                    destination.addProperty(prop, model.createTypedLiteral(Double.parseDouble(value)));
+                } else {
+                    destination.addProperty(prop, value);
+                }
+            });
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            changed();
+        }
+    }
 
-            // Remove old value
-            model.removeAll(destination, prop, null);
+    // Outcome of an ad-hoc query: how many rows were handed over, and whether the result was cut
+    // at the row cap or by the timeout
+    public static class SPARQLResult {
+        private final int maxRows;
+        private int rows;
+        private boolean truncated;
+        private boolean timedOut;
 
-            // Add new value
-            if (property.equals("budget") || property.equals("duration")) {
-                destination.addProperty(prop, model.createTypedLiteral(Double.parseDouble(value)));
-            } else {
-                destination.addProperty(prop, value);
-            }
+        private SPARQLResult(int maxRows) {
+            this.maxRows = maxRows;
+        }
 
-            saveRDF();
-        } catch (Exception e) {
-            e.printStackTrace();
+        public int getRows() {
+            return rows;
+        }
+
+        public int getMaxRows() {
+            return maxRows;
+        }
+
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
         }
     }
 
-    // Execute SPARQL query
-    public List<Map<String, String>> executeSPARQL(String queryString) {
-        List<Map<String, String>> results = new ArrayList<>();
+    // Execute an ad-hoc SELECT query, handing each row over as soon as the result set produces it.
+    // At most rdf.sparqlMaxRows rows are returned and the query is cancelled after
+    // rdf.sparqlTimeoutSeconds. Results are cached per data version: a repeated query replays the
+    // stored rows without taking a slot. Otherwise the query waits for one of
+    // rdf.sparqlMaxConcurrent slots; RejectedExecutionException when too many are already waiting.
+    public SPARQLResult executeSPARQL(String queryString, Consumer<Map<String, String>> action) {
+        Query query;
+        try {
+            query = QueryFactory.create(queryString);
+        } catch (QueryParseException e) {
+            throw new IllegalArgumentException("Invalid SPARQL query: " + e.getMessage(), e);
+        }
+        if (!query.isSelectType()) {
+            throw new IllegalArgumentException("Only SELECT queries are supported");
+        }
+        // Ask for one row past the cap, to tell a truncated result from one that just fits
+        if (!query.hasLimit() || query.getLimit() > sparqlMaxRows) {
+            query = query.cloneQuery();
+            query.setLimit(sparqlMaxRows + 1L);
+        }
+        SPARQLResult result = new SPARQLResult(sparqlMaxRows);
+
+        // Read the version before querying: a change committed in between is then cached
+        // under the older key, which is never used again
+        String key = cacheKey(query, version.get());
+        List<Map<String, String>> cached = resultCache.get(key);
+        if (cached != null) {
+            for (Map<String, String> row : cached) {
+                if (!emit(result, row, action)) break;
+            }
+            return result;
+        }
 
+        admit();
         try {
-            Query query = QueryFactory.create(queryString);
-            try (QueryExecution qexec = QueryExecutionFactory.create(query, model)) {
-                ResultSet resultSet = qexec.execSelect();
-
-                while (resultSet.hasNext()) {
-                    QuerySolution soln = resultSet.nextSolution();
-                    Map<String, String> row = new HashMap<>();
-
-                    Iterator<String> varNames = soln.varNames();
-                    while (varNames.hasNext()) {
-                        String varName = varNames.next();
-                        RDFNode node = soln.get(varName);
-
-                        if (node != null) {
-                            if (node.isLiteral()) {
-                                row.put(varName, node.asLiteral().getString());
-                            } else if (node.isResource()) {
-                                row.put(varName, node.asResource().getURI());
+            SPARQLResultCache.Recorder recorder = resultCache.record(key);
+            Query limited = query;
+            read(() -> {
+                try (QueryExecution qexec = QueryExecution.model(model).query(limited)
+                        .timeout(sparqlTimeoutMillis, TimeUnit.MILLISECONDS).build()) {
+                    ResultSet resultSet = qexec.execSelect();
+
+                    while (resultSet.hasNext()) {
+                        QuerySolution soln = resultSet.nextSolution();
+                        Map<String, String> row = new HashMap<>();
+
+                        Iterator<String> varNames = soln.varNames();
+                        while (varNames.hasNext()) {
+                            String varName = varNames.next();
+                            RDFNode node = soln.get(varName);
+
+                            if (node != null) {
+                                if (node.isLiteral()) {
+                                    row.put(varName, node.asLiteral().getString());
+                                } else if (node.isResource()) {
+                                    row.put(varName, node.asResource().getURI());
+                                }
                             }
                         }
-                    }
 
-                    results.add(row);
+                        // The extra row is kept too, so a replay knows the result was cut
+                        recorder.add(row);
+                        if (!emit(result, row, action)) break;
+                    }
                 }
+            });
+            recorder.complete();
+        } catch (QueryCancelledException e) {
+            // Partial results are not cached
+            result.timedOut = true;
+            sparqlTimedOut.incrementAndGet();
+            LOG.warn("SPARQL query cancelled after {} ms ({} rows): {}", sparqlTimeoutMillis, result.rows,
+                queryString);
+        } finally {
+            sparqlSlots.release();
+        }
+        return result;
+    }
+
+    // Hand a row over unless the cap is reached; false once the result is truncated
+    private static boolean emit(SPARQLResult result, Map<String, String> row, Consumer<Map<String, String>> action) {
+        if (result.rows >= result.maxRows) {
+            result.truncated = true;
+            return false;
+        }
+        result.rows++;
+        action.accept(row);
+        return true;
+    }
+
+    // Take a query slot, waiting at most the query timeout behind at most rdf.sparqlMaxQueued others
+    private void admit() {
+        if (sparqlSlots.tryAcquire()) return;
+        try {
+            if (sparqlWaiting.incrementAndGet() > sparqlMaxQueued) {
+                throw rejected("Too many SPARQL queries waiting");
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            if (!sparqlSlots.tryAcquire(sparqlTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw rejected("No SPARQL query slot became free");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw rejected("Interrupted while waiting for a SPARQL query slot");
+        } finally {
+            sparqlWaiting.decrementAndGet();
         }
+    }
 
-        return results;
+    private RejectedExecutionException rejected(String message) {
+        sparqlRejected.incrementAndGet();
+        return new RejectedExecutionException(message);
     }
 
     // Get graph data for visualization (Jung)
@@ -306,46 +788,48 @@ public class RDFService {
         List<Map<String, String>> edges = new ArrayList<>();
 
         try {
-            // Get all statements
-            StmtIterator iter = model.listStatements();
-
-            Set<String> nodeSet = new HashSet<>();
-
-            while (iter.hasNext()) {
-                Statement stmt = iter.next();
-                Resource subject = stmt.getSubject();
-                Property predicate = stmt.getPredicate();
-                RDFNode object = stmt.getObject();
-
-                // Add subject as node
-                String subjectId = getNodeId(subject);
-                if (nodeSet.add(subjectId)) {
-                    Map<String, String> node = new HashMap<>();
-                    node.put("id", subjectId);
-                    node.put("label", getLabel(subject));
-                    node.put("type", getNodeType(subject));
-                    nodes.add(node);
-                }
+            read(() -> {
+                // Get all statements
+                StmtIterator iter = model.listStatements();
+
+                Set<String> nodeSet = new HashSet<>();
 
-                // Add object as node if it's a resource
-                if (object.isResource()) {
-                    String objectId = getNodeId(object.asResource());
-                    if (nodeSet.add(objectId)) {
+                while (iter.hasNext()) {
+                    Statement stmt = iter.next();
+                    Resource subject = stmt.getSubject();
+                    Property predicate = stmt.getPredicate();
+                    RDFNode object = stmt.getObject();
+
+                    // Add subject as node
+                    String subjectId = getNodeId(subject);
+                    if (nodeSet.add(subjectId)) {
                         Map<String, String> node = new HashMap<>();
-                        node.put("id", objectId);
-                        node.put("label", getLabel(object.asResource()));
-                        node.put("type", getNodeType(object.asResource()));
+                        node.put("id", subjectId);
+                        node.put("label", getLabel(subject));
+                        node.put("type", getNodeType(subject));
                         nodes.add(node);
                     }
 
-                    // Add edge
-                    Map<String, String> edge = new HashMap<>();
-                    edge.put("source", subjectId);
-                    edge.put("target", objectId);
-                    edge.put("label", predicate.getLocalName());
-                    edges.add(edge);
+                    // Add object as node if it's a resource
+                    if (object.isResource()) {
+                        String objectId = getNodeId(object.asResource());
+                        if (nodeSet.add(objectId)) {
+                            Map<String, String> node = new HashMap<>();
+                            node.put("id", objectId);
+                            node.put("label", getLabel(object.asResource()));
+                            node.put("type", getNodeType(object.asResource()));
+                            nodes.add(node);
+                        }
+
+                        // Add edge
+                        Map<String, String> edge = new HashMap<>();
+                        edge.put("source", subjectId);
+                        edge.put("target", objectId);
+                        edge.put("label", predicate.getLocalName());
+                        edges.add(edge);
+                    }
                 }
-            }
+            });
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -357,28 +841,31 @@ public class RDFService {
 
     // Get graph data with highlighted nodes for a destination
     public Map<String, Object> getGraphDataWithHighlight(String destinationName) {
-        Map<String, Object> graphData = getGraphData();
-
-        // Get destination requirements
-        Map<String, Object> requirements = getDestinationRequirements(destinationName);
-
-        if (requirements.containsKey("uri")) {
-            Set<String> highlightNodes = new HashSet<>();
-            highlightNodes.add(getNodeId(model.getResource((String) requirements.get("uri"))));
-
-            // Add activity nodes
-            if (requirements.containsKey("activities")) {
-                @SuppressWarnings("unchecked")
-                List<String> activities = (List<String>) requirements.get("activities");
-                for (String activityURI : activities) {
-                    highlightNodes.add(getNodeId(model.getResource(activityURI)));
+        // One read transaction, so the graph and the highlight agree
+        return read(() -> {
+            Map<String, Object> graphData = getGraphData();
+
+            // Get destination requirements
+            Map<String, Object> requirements = getDestinationRequirements(destinationName);
+
+            if (requirements.containsKey("uri")) {
+                Set<String> highlightNodes = new HashSet<>();
+                highlightNodes.add(getNodeId(model.getResource((String) requirements.get("uri"))));
+
+                // Add activity nodes
+                if (requirements.containsKey("activities")) {
+                    @SuppressWarnings("unchecked")
+                    List<String> activities = (List<String>) requirements.get("activities");
+                    for (String activityURI : activities) {
+                        highlightNodes.add(getNodeId(model.getResource(activityURI)));
+                    }
                 }
-            }
 
-            graphData.put("highlight", highlightNodes);
-        }
+                graphData.put("highlight", highlightNodes);
+            }
 
-        return graphData;
+            return graphData;
+        });
     }
 
     // Helper methods
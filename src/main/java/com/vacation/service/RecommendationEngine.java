@@ -0,0 +1,165 @@
+package com.vacation.service;
+
+import com.vacation.model.Destination;
+import com.vacation.model.User;
+
+import java.util.*;
+
+// Precomputed criteria for the "2 of 3" recommendation rule (budget, duration, activity).
+// Destinations are numbered by their rank in budget order, so:
+//   - "budget <= x" is the prefix [0, n) of the ranks,
+//   - "duration <= d" is a cumulative bitset per distinct duration,
+//   - "offers activity a" is one bitset per activity.
+// A recommendation is (B & D) | (B & A) | (D & A) over those bitsets, and walking the set bits
+// in order yields the result already sorted by budget. Built once per snapshot.
+// The same columns answer combined range filters: a budget interval is a rank range, intersected
+// with the duration bitset and the union of the activity bitsets.
+public class RecommendationEngine {
+    private static final BitSet NONE = new BitSet();
+
+    private final Destination[] byBudget;
+    private final double[] budgets;
+    private final int[] durations;
+    private final BitSet[] durationAtMost;
+    private final Map<String, BitSet> byActivity;
+
+    public RecommendationEngine(List<Destination> destinations) {
+        // Stable sort: equal budgets keep document order, like the former scan-then-sort
+        byBudget = destinations.toArray(new Destination[0]);
+        Arrays.sort(byBudget, Comparator.comparingDouble(Destination::getBudget));
+        budgets = new double[byBudget.length];
+        for (int i = 0; i < byBudget.length; i++) {
+            budgets[i] = byBudget[i].getBudget();
+        }
+
+        // Distinct durations, ascending; durationAtMost[k] holds every rank with duration <= durations[k]
+        durations = Arrays.stream(byBudget).mapToInt(Destination::getDuration).distinct().sorted().toArray();
+        durationAtMost = new BitSet[durations.length];
+        BitSet[] exactly = new BitSet[durations.length];
+        Map<String, BitSet> activities = new HashMap<>();
+        for (int rank = 0; rank < byBudget.length; rank++) {
+            Destination dest = byBudget[rank];
+            int k = Arrays.binarySearch(durations, dest.getDuration());
+            if (exactly[k] == null) exactly[k] = new BitSet(byBudget.length);
+            exactly[k].set(rank);
+            addActivity(activities, dest.getActivity1(), rank);
+            addActivity(activities, dest.getActivity2(), rank);
+        }
+        BitSet cumulative = new BitSet(byBudget.length);
+        for (int k = 0; k < durations.length; k++) {
+            cumulative.or(exactly[k]);
+            durationAtMost[k] = (BitSet) cumulative.clone();
+        }
+        byActivity = activities;
+    }
+
+    // Destinations matching at least 2 of the 3 criteria for this user, cheapest first,
+    // at most limit of them
+    public List<Destination> recommend(User user, int limit) {
+        BitSet matches = match(user.getBudget(), user.getAvailability(), user.getPreferredActivity());
+        List<Destination> results = new ArrayList<>(Math.max(0, Math.min(limit, matches.cardinality())));
+        for (int rank = matches.nextSetBit(0); rank >= 0 && results.size() < limit;
+             rank = matches.nextSetBit(rank + 1)) {
+            results.add(byBudget[rank]);
+        }
+        return results;
+    }
+
+    // Ranks matching at least 2 of: budget <= maxBudget, duration <= maxDuration, offers activity
+    public BitSet match(double maxBudget, int maxDuration, String activity) {
+        int withinBudget = withinBudget(maxBudget);
+        BitSet duration = durationAtMost(maxDuration);
+        BitSet offers = withActivity(activity);
+
+        // (D & A) | (B & D) | (B & A), where B is the prefix [0, withinBudget)
+        BitSet result = (BitSet) duration.clone();
+        result.and(offers);
+        result.or(duration.get(0, withinBudget));
+        result.or(offers.get(0, withinBudget));
+        return result;
+    }
+
+    // Ranks with minBudget <= budget <= maxBudget, duration <= maxDuration and at least one of
+    // the activities; null bounds and an empty activity set do not filter
+    public BitSet filter(Double minBudget, Double maxBudget, Integer maxDuration, Collection<String> activities) {
+        int from = minBudget != null ? belowBudget(minBudget) : 0;
+        int to = maxBudget != null ? withinBudget(maxBudget) : budgets.length;
+        BitSet result = new BitSet(budgets.length);
+        if (from >= to) return result;
+        result.set(from, to);
+        if (maxDuration != null) {
+            result.and(durationAtMost(maxDuration));
+        }
+        if (activities != null && !activities.isEmpty()) {
+            BitSet any = new BitSet(budgets.length);
+            for (String activity : activities) {
+                any.or(withActivity(activity));
+            }
+            result.and(any);
+        }
+        return result;
+    }
+
+    // Number of destinations with budget < minBudget (they are the ranks [0, n))
+    public int belowBudget(double minBudget) {
+        int low = 0;
+        int high = budgets.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (budgets[mid] < minBudget) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Number of destinations with budget <= maxBudget (they are the ranks [0, n))
+    public int withinBudget(double maxBudget) {
+        int low = 0;
+        int high = budgets.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (budgets[mid] <= maxBudget) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // Ranks with duration <= maxDuration (shared, do not modify)
+    public BitSet durationAtMost(int maxDuration) {
+        int k = Arrays.binarySearch(durations, maxDuration);
+        if (k < 0) k = -k - 2;
+        return k >= 0 ? durationAtMost[k] : NONE;
+    }
+
+    // Ranks offering the activity as activity1 or activity2 (shared, do not modify)
+    public BitSet withActivity(String activity) {
+        return activity != null ? byActivity.getOrDefault(activity, NONE) : NONE;
+    }
+
+    // Every activity offered by at least one destination
+    public Set<String> getActivities() {
+        Set<String> activities = new TreeSet<>(byActivity.keySet());
+        activities.remove("");
+        return activities;
+    }
+
+    // Destination at the given budget rank
+    public Destination get(int rank) {
+        return byBudget[rank];
+    }
+
+    public int size() {
+        return byBudget.length;
+    }
+
+    private void addActivity(Map<String, BitSet> activities, String activity, int rank) {
+        if (activity == null) return;
+        activities.computeIfAbsent(activity, key -> new BitSet(byBudget.length)).set(rank);
+    }
+}
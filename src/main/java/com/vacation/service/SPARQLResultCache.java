@@ -0,0 +1,124 @@
+package com.vacation.service;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+// LRU cache of SPARQL SELECT results, bounded by number of entries and by estimated memory.
+// Keys carry the data version, so a change makes every older entry unreachable; the owner also
+// clears the cache on change to release the memory at once.
+// A single result may use at most a quarter of the memory budget; larger ones are not kept.
+public class SPARQLResultCache {
+    private static final int ENTRY_OVERHEAD = 64;
+    private static final int MAP_ENTRY_OVERHEAD = 48;
+
+    private static class Entry {
+        private final List<Map<String, String>> rows;
+        private final long bytes;
+
+        private Entry(List<Map<String, String>> rows, long bytes) {
+            this.rows = rows;
+            this.bytes = bytes;
+        }
+    }
+
+    // Collects the rows of a miss while they are streamed to the client
+    public class Recorder {
+        private final String key;
+        private List<Map<String, String>> rows = new ArrayList<>();
+        private long bytes = ENTRY_OVERHEAD;
+
+        private Recorder(String key) {
+            this.key = key;
+        }
+
+        public void add(Map<String, String> row) {
+            if (rows == null) return;
+            bytes += estimate(row);
+            if (bytes > maxEntryBytes) {
+                // Too large to cache: stop collecting
+                rows = null;
+            } else {
+                rows.add(row);
+            }
+        }
+
+        // The query ran to the end: keep the result
+        public void complete() {
+            if (rows != null) {
+                put(key, new Entry(Collections.unmodifiableList(rows), bytes));
+            }
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public SPARQLResultCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 4;
+    }
+
+    // Cached rows, or null (counted as a miss)
+    public synchronized List<Map<String, String>> get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.rows;
+    }
+
+    public Recorder record(String key) {
+        return new Recorder(key);
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        if (maxEntries <= 0) return;
+        Entry previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += entry.bytes;
+        // Evict least recently used entries until both bounds hold
+        Iterator<Entry> eldest = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+        }
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRatio", hitCount + missCount > 0 ? (double) hitCount / (hitCount + missCount) : 0.0);
+        stats.put("entries", entries.size());
+        stats.put("bytes", bytes);
+        stats.put("maxEntries", maxEntries);
+        stats.put("maxBytes", maxBytes);
+        return stats;
+    }
+
+    // Rough heap size of a row: map entries plus UTF-16 strings
+    private static long estimate(Map<String, String> row) {
+        long size = ENTRY_OVERHEAD;
+        for (Map.Entry<String, String> entry : row.entrySet()) {
+            size += MAP_ENTRY_OVERHEAD + 2L * (entry.getKey().length() + entry.getValue().length());
+        }
+        return size;
+    }
+}
@@ -0,0 +1,131 @@
+package com.vacation.service;
+
+import com.vacation.model.Destination;
+import com.vacation.model.User;
+import net.sf.saxon.s9api.*;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
+
+// XPath queries run by Saxon over a TinyTree copy of the document.
+// Expressions are compiled once with declared variables; XPathExecutable is thread-safe,
+// and each evaluation loads its own XPathSelector.
+public class SaxonLookup implements DestinationLookup {
+    private static final QName BUDGET = new QName("budget");
+    private static final QName NAME = new QName("name");
+    private static final QName ACTIVITY = new QName("activity");
+    private static final QName ID = new QName("id");
+
+    private final Supplier<XdmNode> document;
+    private final XPathExecutable allDestinations;
+    private final XPathExecutable byBudget;
+    private final XPathExecutable byName;
+    private final XPathExecutable byActivity;
+    private final XPathExecutable firstUser;
+
+    public SaxonLookup(Processor processor, Supplier<XdmNode> document) {
+        this.document = document;
+        allDestinations = compile(processor, "//destination", null, null);
+        byBudget = compile(processor, "//destination[budget <= $budget]", BUDGET, ItemType.DOUBLE);
+        byName = compile(processor, "(//destination[name = $name])[1]", NAME, ItemType.STRING);
+        byActivity = compile(processor, "//destination[activity1 = $activity or activity2 = $activity]",
+            ACTIVITY, ItemType.STRING);
+        firstUser = compile(processor, "(//user)[1]", null, null);
+    }
+
+    @Override
+    public List<Destination> getAll() {
+        return toDestinations(evaluate(allDestinations, null, null));
+    }
+
+    // Same order as the index: ascending budget, ties in document order (List.sort is stable)
+    @Override
+    public List<Destination> getByMaxBudget(double maxBudget) {
+        List<Destination> results = toDestinations(evaluate(byBudget, BUDGET, new XdmAtomicValue(maxBudget)));
+        results.sort(Comparator.comparingDouble(Destination::getBudget));
+        return results;
+    }
+
+    @Override
+    public Destination getByName(String name) {
+        XdmValue result = evaluate(byName, NAME, new XdmAtomicValue(name));
+        return result.size() > 0 ? toDestination((XdmNode) result.itemAt(0)) : null;
+    }
+
+    @Override
+    public List<Destination> getByActivity(String activity) {
+        return toDestinations(evaluate(byActivity, ACTIVITY, new XdmAtomicValue(activity)));
+    }
+
+    public User getFirstUser() {
+        XdmValue result = evaluate(firstUser, null, null);
+        if (result.size() == 0) return null;
+
+        XdmNode node = (XdmNode) result.itemAt(0);
+        User user = new User();
+        user.setId(Integer.parseInt(node.getAttributeValue(ID)));
+        user.setFirstName(childText(node, "firstName"));
+        user.setLastName(childText(node, "lastName"));
+        user.setAvailability(Integer.parseInt(childText(node, "availability")));
+        user.setPreferredActivity(childText(node, "preferredActivity"));
+        user.setBudget(Double.parseDouble(childText(node, "budget")));
+        return user;
+    }
+
+    // Compile an expression, declaring its (single) external variable
+    private static XPathExecutable compile(Processor processor, String expression,
+                                           QName variable, ItemType type) {
+        try {
+            XPathCompiler compiler = processor.newXPathCompiler();
+            if (variable != null) {
+                compiler.declareVariable(variable, type, OccurrenceIndicator.ONE);
+            }
+            return compiler.compile(expression);
+        } catch (SaxonApiException e) {
+            throw new IllegalStateException("Invalid XPath: " + expression, e);
+        }
+    }
+
+    // Evaluate a compiled expression against the current document, binding at most one variable
+    private XdmValue evaluate(XPathExecutable executable, QName variable, XdmValue value) {
+        try {
+            XPathSelector selector = executable.load();
+            if (variable != null) {
+                selector.setVariable(variable, value);
+            }
+            selector.setContextItem(document.get());
+            return selector.evaluate();
+        } catch (SaxonApiException e) {
+            throw new IllegalStateException("XPath evaluation failed", e);
+        }
+    }
+
+    private static List<Destination> toDestinations(XdmValue nodes) {
+        List<Destination> results = new ArrayList<>(nodes.size());
+        for (XdmItem item : nodes) {
+            results.add(toDestination((XdmNode) item));
+        }
+        return results;
+    }
+
+    private static Destination toDestination(XdmNode node) {
+        Destination dest = new Destination();
+        dest.setId(Integer.parseInt(node.getAttributeValue(ID)));
+        dest.setName(childText(node, "name"));
+        dest.setDescription(childText(node, "description"));
+        dest.setDuration(Integer.parseInt(childText(node, "duration")));
+        dest.setActivity1(childText(node, "activity1"));
+        dest.setActivity2(childText(node, "activity2"));
+        dest.setBudget(Double.parseDouble(childText(node, "budget")));
+        return dest;
+    }
+
+    private static String childText(XdmNode parent, String name) {
+        for (XdmNode child : parent.children(name)) {
+            return child.getStringValue();
+        }
+        return "";
+    }
+}
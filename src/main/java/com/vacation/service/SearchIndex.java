@@ -0,0 +1,175 @@
+package com.vacation.service;
+
+import com.vacation.model.Destination;
+
+import java.text.Normalizer;
+import java.util.*;
+import java.util.regex.Pattern;
+
+// Inverted index over destination names and descriptions, ranked with BM25.
+// Text is folded to lower case without accents ("Randonnée" -> "randonnee"), split on anything
+// that is not a letter or digit (which also undoes elisions like "l'eau"), French stopwords are
+// dropped and a final plural s/x is stripped, so queries and documents meet on the same terms.
+// A name hit counts NAME_WEIGHT times a description hit (BM25F-style weighted frequency).
+// Immutable: withDestinations() returns a new index that tokenises only the added documents and
+// shares the posting lists of every term they do not contain.
+public class SearchIndex {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int NAME_WEIGHT = 3;
+
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SEPARATORS = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+    private static final Set<String> STOPWORDS = new HashSet<>(Arrays.asList(
+        "a", "au", "aux", "avec", "ce", "ces", "c", "d", "dans", "de", "des", "du", "elle", "en",
+        "et", "il", "j", "l", "la", "le", "les", "leur", "leurs", "m", "mais", "n", "ne", "nos",
+        "notre", "ou", "par", "pas", "pour", "qu", "que", "qui", "s", "sa", "se", "ses", "son",
+        "sur", "t", "ta", "te", "un", "une", "vos", "votre", "y"));
+
+    // Documents containing a term, in document order, with their weighted term frequency
+    private static class Postings {
+        private final int[] docs;
+        private final int[] frequencies;
+
+        private Postings(int[] docs, int[] frequencies) {
+            this.docs = docs;
+            this.frequencies = frequencies;
+        }
+    }
+
+    private final List<Destination> documents;
+    private final Map<String, Postings> terms;
+    private final int[] lengths;
+    private final long totalLength;
+
+    public SearchIndex(List<Destination> destinations) {
+        this(Collections.emptyList(), Collections.emptyMap(), new int[0], 0, destinations);
+    }
+
+    private SearchIndex(List<Destination> previous, Map<String, Postings> previousTerms, int[] previousLengths,
+                        long previousTotal, List<Destination> added) {
+        int base = previous.size();
+        List<Destination> docs = new ArrayList<>(base + added.size());
+        docs.addAll(previous);
+        docs.addAll(added);
+        int[] docLengths = Arrays.copyOf(previousLengths, base + added.size());
+        long total = previousTotal;
+
+        // Weighted frequencies of the new documents, grouped by term
+        Map<String, List<int[]>> additions = new HashMap<>();
+        for (int i = 0; i < added.size(); i++) {
+            Destination dest = added.get(i);
+            Map<String, Integer> frequencies = new HashMap<>();
+            int length = count(frequencies, dest.getName(), NAME_WEIGHT) + count(frequencies, dest.getDescription(), 1);
+            docLengths[base + i] = length;
+            total += length;
+            for (Map.Entry<String, Integer> entry : frequencies.entrySet()) {
+                additions.computeIfAbsent(entry.getKey(), t -> new ArrayList<>())
+                    .add(new int[] {base + i, entry.getValue()});
+            }
+        }
+
+        // Copy on write: only the touched posting lists are rebuilt
+        Map<String, Postings> index = new HashMap<>(previousTerms);
+        for (Map.Entry<String, List<int[]>> entry : additions.entrySet()) {
+            Postings old = index.get(entry.getKey());
+            int oldSize = old != null ? old.docs.length : 0;
+            List<int[]> hits = entry.getValue();
+            int[] postingDocs = old != null ? Arrays.copyOf(old.docs, oldSize + hits.size()) : new int[hits.size()];
+            int[] postingFrequencies = old != null
+                ? Arrays.copyOf(old.frequencies, oldSize + hits.size()) : new int[hits.size()];
+            for (int i = 0; i < hits.size(); i++) {
+                postingDocs[oldSize + i] = hits.get(i)[0];
+                postingFrequencies[oldSize + i] = hits.get(i)[1];
+            }
+            index.put(entry.getKey(), new Postings(postingDocs, postingFrequencies));
+        }
+
+        this.documents = Collections.unmodifiableList(docs);
+        this.terms = index;
+        this.lengths = docLengths;
+        this.totalLength = total;
+    }
+
+    // New index with the given destinations appended
+    public SearchIndex withDestinations(List<Destination> added) {
+        return new SearchIndex(documents, terms, lengths, totalLength, added);
+    }
+
+    // Destinations matching any query term, best first, at most limit of them
+    public List<Destination> search(String query, int limit) {
+        Set<String> queryTerms = new LinkedHashSet<>(tokenize(query));
+        if (queryTerms.isEmpty() || documents.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+
+        int n = documents.size();
+        double averageLength = Math.max(1.0, (double) totalLength / n);
+        Map<Integer, Double> scores = new HashMap<>();
+        for (String term : queryTerms) {
+            Postings postings = terms.get(term);
+            if (postings == null) continue;
+            int df = postings.docs.length;
+            double idf = Math.log(1 + (n - df + 0.5) / (df + 0.5));
+            for (int i = 0; i < df; i++) {
+                int doc = postings.docs[i];
+                double tf = postings.frequencies[i];
+                double norm = K1 * (1 - B + B * lengths[doc] / averageLength);
+                scores.merge(doc, idf * tf * (K1 + 1) / (tf + norm), Double::sum);
+            }
+        }
+
+        // Top-k by score; ties go to the earlier document
+        Comparator<Map.Entry<Integer, Double>> worstFirst = Map.Entry.<Integer, Double>comparingByValue()
+            .thenComparing(Map.Entry.<Integer, Double>comparingByKey().reversed());
+        PriorityQueue<Map.Entry<Integer, Double>> top = new PriorityQueue<>(worstFirst);
+        for (Map.Entry<Integer, Double> entry : scores.entrySet()) {
+            top.add(entry);
+            if (top.size() > limit) top.poll();
+        }
+        Destination[] results = new Destination[top.size()];
+        for (int i = results.length - 1; i >= 0; i--) {
+            results[i] = documents.get(top.poll().getKey());
+        }
+        return Arrays.asList(results);
+    }
+
+    // Index terms of a text, in order (duplicates kept)
+    static List<String> tokenize(String text) {
+        List<String> tokens = new ArrayList<>();
+        if (text == null) return tokens;
+        String folded = text.toLowerCase(Locale.ROOT);
+        if (!isAscii(folded)) {
+            folded = MARKS.matcher(Normalizer.normalize(folded, Normalizer.Form.NFD)).replaceAll("");
+        }
+        for (String word : SEPARATORS.split(folded)) {
+            if (word.isEmpty() || STOPWORDS.contains(word)) continue;
+            tokens.add(stem(word));
+        }
+        return tokens;
+    }
+
+    private static boolean isAscii(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) >= 0x80) return false;
+        }
+        return true;
+    }
+
+    // Light plural stripping: "alpes" -> "alpe", "chateaux" -> "chateau"
+    private static String stem(String word) {
+        if (word.length() > 3 && (word.endsWith("s") || word.endsWith("x"))) {
+            return word.substring(0, word.length() - 1);
+        }
+        return word;
+    }
+
+    private static int count(Map<String, Integer> frequencies, String text, int weight) {
+        int length = 0;
+        for (String token : tokenize(text)) {
+            frequencies.merge(token, weight, Integer::sum);
+            length += weight;
+        }
+        return length;
+    }
+}
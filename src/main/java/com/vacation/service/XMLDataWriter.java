@@ -0,0 +1,99 @@
+package com.vacation.service;
+
+import com.vacation.model.Destination;
+import com.vacation.model.User;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.math.BigDecimal;
+import java.util.List;
+
+// Writes the model back out as destinations.xml markup through any XMLStreamWriter:
+// a file, a Saxon TinyTree builder or a DOM.
+public class XMLDataWriter {
+    private static final String INDENT = "    ";
+
+    private final XMLStreamWriter writer;
+    private final boolean indent;
+
+    public XMLDataWriter(XMLStreamWriter writer, boolean indent) {
+        this.writer = writer;
+        this.indent = indent;
+    }
+
+    // Write a complete <vacationData> document
+    public void writeDocument(List<User> users, List<Destination> destinations) throws XMLStreamException {
+        writer.writeStartDocument("UTF-8", "1.0");
+        newLine(0);
+        writer.writeStartElement("vacationData");
+
+        newLine(1);
+        writer.writeStartElement("users");
+        for (User user : users) {
+            writeUser(user, 2);
+        }
+        newLine(1);
+        writer.writeEndElement();
+
+        newLine(1);
+        writer.writeStartElement("destinations");
+        for (Destination dest : destinations) {
+            writeDestination(dest, 2);
+        }
+        newLine(1);
+        writer.writeEndElement();
+
+        newLine(0);
+        writer.writeEndElement();
+        writer.writeEndDocument();
+        writer.flush();
+    }
+
+    public void writeDestination(Destination dest, int depth) throws XMLStreamException {
+        newLine(depth);
+        writer.writeStartElement("destination");
+        writer.writeAttribute("id", String.valueOf(dest.getId()));
+        writeElement("name", dest.getName(), depth + 1);
+        writeElement("description", dest.getDescription(), depth + 1);
+        writeElement("duration", String.valueOf(dest.getDuration()), depth + 1);
+        writeElement("activity1", dest.getActivity1(), depth + 1);
+        writeElement("activity2", dest.getActivity2(), depth + 1);
+        writeElement("budget", formatDecimal(dest.getBudget()), depth + 1);
+        newLine(depth);
+        writer.writeEndElement();
+    }
+
+    public void writeUser(User user, int depth) throws XMLStreamException {
+        newLine(depth);
+        writer.writeStartElement("user");
+        writer.writeAttribute("id", String.valueOf(user.getId()));
+        writeElement("firstName", user.getFirstName(), depth + 1);
+        writeElement("lastName", user.getLastName(), depth + 1);
+        writeElement("availability", String.valueOf(user.getAvailability()), depth + 1);
+        writeElement("preferredActivity", user.getPreferredActivity(), depth + 1);
+        writeElement("budget", formatDecimal(user.getBudget()), depth + 1);
+        newLine(depth);
+        writer.writeEndElement();
+    }
+
+    // xs:decimal lexical form: no exponent, no trailing ".0"
+    public static String formatDecimal(double value) {
+        return BigDecimal.valueOf(value).stripTrailingZeros().toPlainString();
+    }
+
+    private void writeElement(String name, String text, int depth) throws XMLStreamException {
+        newLine(depth);
+        writer.writeStartElement(name);
+        writer.writeCharacters(text != null ? text : "");
+        writer.writeEndElement();
+    }
+
+    private void newLine(int depth) throws XMLStreamException {
+        if (!indent) return;
+        StringBuilder sb = new StringBuilder("\n");
+        for (int i = 0; i < depth; i++) {
+            sb.append(INDENT);
+        }
+        writer.writeCharacters(sb.toString());
+    }
+}
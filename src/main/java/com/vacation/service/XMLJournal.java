@@ -0,0 +1,285 @@
+package com.vacation.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonSyntaxException;
+import com.vacation.model.Destination;
+import com.vacation.model.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+// Append-only journal of XML mutations (one JSON record per line).
+// A single writer thread drains all pending appends, writes them and fsyncs once (group commit).
+// Compaction runs on the same thread: the caller writes a full snapshot, then the journal
+// is truncated.
+public class XMLJournal implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(XMLJournal.class);
+    private static final int MAX_BATCH = 1024;
+
+    // One journal record
+    public static class Entry {
+        private final String op;
+        private final Destination destination;
+        private final User user;
+
+        private Entry(String op, Destination destination, User user) {
+            this.op = op;
+            this.destination = destination;
+            this.user = user;
+        }
+
+        public static Entry addDestination(Destination destination) {
+            return new Entry("addDestination", destination, null);
+        }
+
+        public static Entry addUser(User user) {
+            return new Entry("addUser", null, user);
+        }
+
+        public String getOp() {
+            return op;
+        }
+
+        public Destination getDestination() {
+            return destination;
+        }
+
+        public User getUser() {
+            return user;
+        }
+    }
+
+    private static class Task {
+        private final byte[] data;
+        private final Runnable snapshot;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        private Task(byte[] data, Runnable snapshot) {
+            this.data = data;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private static final Task STOP = new Task(null, null);
+
+    private final Path path;
+    private final Gson gson = new Gson();
+    private final BlockingQueue<Task> queue = new LinkedBlockingQueue<>();
+    private FileChannel channel;
+    private volatile Thread writer;
+    private volatile boolean closed;
+    // The writer thread is taking tasks; guarded by this
+    private boolean running;
+
+    public XMLJournal(Path path) {
+        this.path = path;
+    }
+
+    // Replay existing records, drop a torn trailing record, then open for appending
+    public void open(Consumer<Entry> replay) throws IOException {
+        long validLength = 0;
+        if (Files.exists(path)) {
+            try (InputStream in = new BufferedInputStream(Files.newInputStream(path))) {
+                ByteArrayOutputStream line = new ByteArrayOutputStream();
+                long offset = 0;
+                int b;
+                while ((b = in.read()) != -1) {
+                    offset++;
+                    if (b != '\n') {
+                        line.write(b);
+                        continue;
+                    }
+                    String json = new String(line.toByteArray(), StandardCharsets.UTF_8);
+                    line.reset();
+                    if (!json.isBlank()) {
+                        try {
+                            replay.accept(gson.fromJson(json, Entry.class));
+                        } catch (JsonSyntaxException e) {
+                            LOG.warn("Stopping journal replay at corrupt record (offset {})", validLength);
+                            break;
+                        }
+                    }
+                    validLength = offset;
+                }
+            }
+        }
+
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > validLength) {
+            LOG.warn("Truncating incomplete journal tail of {}", path);
+            channel.truncate(validLength);
+            channel.force(true);
+        }
+        channel.position(validLength);
+
+        writer = new Thread(this::run, "xml-journal");
+        writer.setDaemon(true);
+        synchronized (this) {
+            running = true;
+        }
+        writer.start();
+    }
+
+    // Append records; the future completes once they are on disk
+    public CompletableFuture<Void> append(List<Entry> entries) {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : entries) {
+            sb.append(gson.toJson(entry)).append('\n');
+        }
+        return submit(new Task(sb.toString().getBytes(StandardCharsets.UTF_8), null));
+    }
+
+    public CompletableFuture<Void> append(Entry entry) {
+        return append(List.of(entry));
+    }
+
+    // Run the snapshot writer on the journal thread, then truncate the journal
+    public CompletableFuture<Void> compact(Runnable snapshotWriter) {
+        return submit(new Task(null, snapshotWriter));
+    }
+
+    public boolean isOpen() {
+        return writer != null && !closed;
+    }
+
+    // Bytes currently in the journal
+    public long size() {
+        try {
+            return channel != null ? channel.size() : 0;
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    // Fails at once unless the writer thread is running. Locked against close() and the writer
+    // stopping, so nothing can be queued where it is never taken.
+    private synchronized CompletableFuture<Void> submit(Task task) {
+        if (!running || closed) {
+            task.done.completeExceptionally(new IllegalStateException(
+                closed ? "Journal is closed" : "Journal is not open"));
+        } else {
+            queue.add(task);
+        }
+        return task.done;
+    }
+
+    private void run() {
+        try {
+            process();
+        } finally {
+            // Whatever made the writer stop, no caller is left waiting
+            List<Task> left = new ArrayList<>();
+            synchronized (this) {
+                running = false;
+                queue.drainTo(left);
+            }
+            for (Task task : left) {
+                task.done.completeExceptionally(new IllegalStateException("Journal is closed"));
+            }
+        }
+    }
+
+    private void process() {
+        List<Task> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            List<Task> appended = new ArrayList<>();
+            for (Task task : batch) {
+                if (task == STOP) {
+                    sync(appended);
+                    return;
+                }
+                if (task.data != null) {
+                    write(task, appended);
+                } else {
+                    // Everything before the compaction must be durable first
+                    sync(appended);
+                    runCompaction(task);
+                }
+            }
+            sync(appended);
+            batch.clear();
+        }
+    }
+
+    private void write(Task task, List<Task> appended) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(task.data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            appended.add(task);
+        } catch (IOException e) {
+            task.done.completeExceptionally(e);
+        }
+    }
+
+    // One fsync for the whole group
+    private void sync(List<Task> appended) {
+        if (appended.isEmpty()) return;
+        try {
+            channel.force(false);
+            for (Task task : appended) {
+                task.done.complete(null);
+            }
+        } catch (IOException e) {
+            for (Task task : appended) {
+                task.done.completeExceptionally(e);
+            }
+        }
+        appended.clear();
+    }
+
+    private void runCompaction(Task task) {
+        try {
+            task.snapshot.run();
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+            task.done.complete(null);
+        } catch (Exception e) {
+            LOG.error("Journal compaction failed, keeping journal", e);
+            task.done.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            if (running) {
+                queue.add(STOP);
+            }
+        }
+        if (writer != null) {
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
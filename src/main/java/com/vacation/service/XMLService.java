@@ -1,330 +1,644 @@
 package com.vacation.service;
 
 import com.vacation.model.Destination;
+import com.vacation.model.Page;
 import com.vacation.model.User;
+import com.vacation.util.LruCache;
+import com.vacation.util.PageCursor;
 import net.sf.saxon.s9api.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.w3c.dom.*;
 import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
 
-import javax.xml.parsers.*;
-import javax.xml.transform.*;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.stream.StreamSource;
-import javax.xml.xpath.*;
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 public class XMLService {
+    private static final Logger LOG = LoggerFactory.getLogger(XMLService.class);
+
     private static final String XML_FILE_PATH = "data/destinations.xml";
     private static final String XSD_FILE_PATH = "data/destinations.xsd";
     private static final String XSLT_FILE_PATH = "xslt/destinations.xsl";
+    private static final String XQUERY_DIRECTORY = "xquery";
+
+    // Query engine for destination lookups: "index" (default), "xpath" (JAXP over the DOM)
+    // or "saxon" (Saxon XPath over a TinyTree copy)
+    public static final String QUERY_ENGINE = "xml.queryEngine";
+    // Load destinations.xml in a background thread instead of blocking servlet init
+    public static final String LOAD_IN_BACKGROUND = "xml.loadInBackground";
+    // Seconds between background compactions of the journal into destinations.xml
+    public static final String COMPACTION_INTERVAL = "xml.compactionIntervalSeconds";
+    // Validate the whole destinations.xml against the schema at startup (one streaming pass)
+    public static final String VALIDATE_ON_LOAD = "xml.validateOnLoad";
+    // Longest wait for an XQuery (seconds); the response is cut off then, but Saxon-HE cannot stop
+    // the evaluation, which keeps its slot until it ends
+    public static final String XQUERY_TIMEOUT = "xml.xqueryTimeoutSeconds";
+    // XQueries running at once, overrunning ones included (default: number of processors)
+    public static final String XQUERY_MAX_CONCURRENT = "xml.xqueryMaxConcurrent";
+
+    // Facet bands: budget < 500, 500-1000, > 1000; duration 1-3, 4-7, 8-14, 15+ days
+    private static final double[] BUDGET_BANDS = {500, 1000};
+    private static final int[] DURATION_BANDS = {3, 7, 14};
+    // Scored recommendations waiting for the request thread to write them
+    private static final int RECOMMENDATION_QUEUE = 256;
 
-    private Document document;
     private String xmlFilePath;
+    private String queryEngine;
+    private final boolean validateOnLoad;
+    // Schema checks for every write; null if destinations.xsd could not be compiled
+    private XMLValidator validator;
+    // Mutations are appended here and compacted into destinations.xml in the background
+    private final XMLJournal journal;
+    private final ScheduledExecutorService compactor;
+    // Batch recommendations are scored here, not on the JVM-wide common pool
+    private final ForkJoinPool recommender;
+    // Current published data. Readers use it without locking; writers hold writeLock,
+    // build a new snapshot and swap it in.
+    private volatile XMLSnapshot snapshot = XMLSnapshot.EMPTY;
+    // Distinguishes versions across restarts, versions start again from 1
+    private final long epoch = System.currentTimeMillis();
+    private final Object writeLock = new Object();
+    // Last allocated ids, seeded from the loaded data (file + journal)
+    private final AtomicInteger lastDestinationId = new AtomicInteger();
+    private final AtomicInteger lastUserId = new AtomicInteger();
+    private XPathLookup xpathLookup;
+    private SaxonLookup saxonLookup;
+    private XQueryRunner xqueryRunner;
+
+    // Saxon processor shared by the XSLT transformation and the Saxon query engine
+    private final Processor processor = new Processor(false);
+    private volatile XsltExecutable stylesheet;
+    private volatile String stylesheetPath;
+    // Rendered HTML keyed by data version and preferred activity
+    private final LruCache<String, String> renderedHtml = new LruCache<>(32);
+
+    // Load progress
+    private final CountDownLatch loaded = new CountDownLatch(1);
+    private volatile boolean loading;
+    private volatile long loadedRecords;
+    private volatile long loadedBytes;
+    private volatile long totalBytes;
+    // Set when destinations.xml could not be read: the published data is then incomplete, so
+    // writes and saves are refused rather than overwriting the file with it
+    private volatile Exception loadFailure;
 
     public XMLService(String contextPath) {
+        this(contextPath, new Properties());
+    }
+
+    public XMLService(String contextPath, Properties settings) {
         this.xmlFilePath = contextPath + "/" + XML_FILE_PATH;
-        loadXML();
+        this.queryEngine = settings.getProperty(QUERY_ENGINE, "index");
+        this.validateOnLoad = Boolean.parseBoolean(settings.getProperty(VALIDATE_ON_LOAD, "false"));
+        try {
+            validator = new XMLValidator(new File(contextPath + "/" + XSD_FILE_PATH));
+        } catch (SAXException e) {
+            LOG.error("Cannot compile {}, writes will not be schema-validated", XSD_FILE_PATH, e);
+        }
+        xpathLookup = new XPathLookup(() -> snapshot.getDom());
+        saxonLookup = new SaxonLookup(processor, this::currentSourceNode);
+        long xqueryTimeout = Long.parseLong(settings.getProperty(XQUERY_TIMEOUT, "10"));
+        int xqueryMaxConcurrent = Integer.parseInt(settings.getProperty(XQUERY_MAX_CONCURRENT,
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+        xqueryRunner = new XQueryRunner(processor, this::currentSourceNode,
+            new File(contextPath, XQUERY_DIRECTORY), TimeUnit.SECONDS.toMillis(xqueryTimeout), xqueryMaxConcurrent);
+        journal = new XMLJournal(Paths.get(xmlFilePath + ".journal"));
+        recommender = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("xml-recommender-" + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+
+        loading = true;
+        if (Boolean.parseBoolean(settings.getProperty(LOAD_IN_BACKGROUND, "false"))) {
+            Thread loader = new Thread(this::loadXML, "xml-loader");
+            loader.setDaemon(true);
+            loader.start();
+        } else {
+            loadXML();
+        }
+
+        long interval = Long.parseLong(settings.getProperty(COMPACTION_INTERVAL, "60"));
+        compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "xml-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactIfNeeded, interval, interval, TimeUnit.SECONDS);
     }
 
-    // Load XML file into memory
+    // Load XML file into memory (streaming, no DOM), then replay the journal over it
     private void loadXML() {
+        List<Destination> destinations = new ArrayList<>();
+        List<User> users = new ArrayList<>();
         try {
             File file = new File(xmlFilePath);
-            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-            factory.setNamespaceAware(true);
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            document = builder.parse(file);
-            document.getDocumentElement().normalize();
+            totalBytes = file.length();
+            if (validateOnLoad && validator != null) {
+                validateFile(file);
+            }
+            XMLStreamLoader.LoadedData data = new XMLStreamLoader().load(file, this::loadProgress);
+            destinations.addAll(data.getDestinations());
+            users.addAll(data.getUsers());
         } catch (Exception e) {
-            e.printStackTrace();
+            // The journal is left unopened too: it stays on disk for the next start
+            loadFailure = e;
+            LOG.error("Cannot load {}, writes are refused until it loads", xmlFilePath, e);
+            loading = false;
+            loaded.countDown();
+            return;
         }
-    }
 
-    // Save XML to file
-    public void saveXML() {
         try {
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
-            Transformer transformer = transformerFactory.newTransformer();
-            transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-            transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", "4");
-
-            DOMSource source = new DOMSource(document);
-            StreamResult result = new StreamResult(new File(xmlFilePath));
-            transformer.transform(source, result);
+            synchronized (writeLock) {
+                replayJournal(destinations, users);
+                for (Destination dest : destinations) {
+                    lastDestinationId.accumulateAndGet(dest.getId(), Math::max);
+                }
+                for (User user : users) {
+                    lastUserId.accumulateAndGet(user.getId(), Math::max);
+                }
+                publish(new XMLSnapshot(snapshot.getVersion() + 1, destinations, users));
+            }
+            LOG.info("Loaded {} destinations and {} users from {}",
+                destinations.size(), users.size(), xmlFilePath);
         } catch (Exception e) {
-            e.printStackTrace();
+            // Journal unreadable or not writable: without it, writes could not be made durable
+            loadFailure = e;
+            LOG.error("Cannot replay {}.journal, writes are refused", xmlFilePath, e);
+        } finally {
+            loading = false;
+            loaded.countDown();
         }
     }
 
-    // Add new destination to XML
-    public void addDestination(Destination dest) {
+    private void validateFile(File file) throws IOException {
         try {
-            Element root = document.getDocumentElement();
-            NodeList destinations = root.getElementsByTagName("destinations");
-            Element destinationsElement = (Element) destinations.item(0);
+            validator.validateDocument(file);
+            LOG.info("{} is valid against {}", xmlFilePath, XSD_FILE_PATH);
+        } catch (SAXParseException e) {
+            LOG.error("{} is not valid against {} (line {}): {}",
+                xmlFilePath, XSD_FILE_PATH, e.getLineNumber(), e.getMessage());
+        } catch (SAXException e) {
+            LOG.error("{} is not valid against {}: {}", xmlFilePath, XSD_FILE_PATH, e.getMessage());
+        }
+    }
 
-            // Create new destination element
-            Element destinationElement = document.createElement("destination");
-            destinationElement.setAttribute("id", String.valueOf(dest.getId()));
+    private void loadProgress(long records, long bytesRead, long total) {
+        loadedRecords = records;
+        loadedBytes = bytesRead;
+        if (total > 0) {
+            LOG.info("Loading {}: {} records, {}% read", xmlFilePath, records, bytesRead * 100 / total);
+        }
+    }
 
-            Element name = document.createElement("name");
-            name.setTextContent(dest.getName());
-            destinationElement.appendChild(name);
+    // Load status (for /api/xml/status)
+    public Map<String, Object> getLoadStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("loading", loading);
+        status.put("records", loadedRecords);
+        status.put("bytesRead", loadedBytes);
+        status.put("totalBytes", totalBytes);
+        status.put("destinations", snapshot.getDestinations().size());
+        status.put("users", snapshot.getUsers().size());
+        if (loadFailure != null) {
+            status.put("error", String.valueOf(loadFailure.getMessage()));
+        }
+        return status;
+    }
 
-            Element description = document.createElement("description");
-            description.setTextContent(dest.getDescription());
-            destinationElement.appendChild(description);
+    // Writes wait until the initial load has finished
+    private void awaitLoaded() throws InterruptedException {
+        loaded.await();
+    }
 
-            Element duration = document.createElement("duration");
-            duration.setTextContent(String.valueOf(dest.getDuration()));
-            destinationElement.appendChild(duration);
+    private void awaitLoadedUninterruptibly() {
+        try {
+            awaitLoaded();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            Element activity1 = document.createElement("activity1");
-            activity1.setTextContent(dest.getActivity1());
-            destinationElement.appendChild(activity1);
+    // Writes are refused while the data on disk could not be loaded
+    private void checkWritable() {
+        Exception failure = loadFailure;
+        if (failure != null) {
+            throw new IllegalStateException("Writes are disabled, loading " + XML_FILE_PATH
+                + " or its journal failed: " + failure.getMessage(), failure);
+        }
+    }
 
-            Element activity2 = document.createElement("activity2");
-            activity2.setTextContent(dest.getActivity2());
-            destinationElement.appendChild(activity2);
+    // Apply journal records written since the last compaction.
+    // Records already present in the file (same id) are skipped, so replay is idempotent.
+    private void replayJournal(List<Destination> destinations, List<User> users) throws IOException {
+        Set<Integer> destinationIds = new HashSet<>();
+        for (Destination dest : destinations) destinationIds.add(dest.getId());
+        Set<Integer> userIds = new HashSet<>();
+        for (User user : users) userIds.add(user.getId());
+
+        journal.open(entry -> {
+            if (entry.getDestination() != null && destinationIds.add(entry.getDestination().getId())) {
+                destinations.add(entry.getDestination());
+            } else if (entry.getUser() != null && userIds.add(entry.getUser().getId())) {
+                users.add(entry.getUser());
+            }
+        });
+    }
 
-            Element budget = document.createElement("budget");
-            budget.setTextContent(String.valueOf(dest.getBudget()));
-            destinationElement.appendChild(budget);
+    // Save XML to file: write a full snapshot and empty the journal
+    public void saveXML() {
+        try {
+            awaitLoaded();
+            checkWritable();
+            journal.compact(this::writeSnapshot).join();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
 
-            destinationsElement.appendChild(destinationElement);
+    // Background compaction, only when there is something in the journal and the data it is
+    // compacted into was loaded
+    private void compactIfNeeded() {
+        if (loadFailure == null && journal.isOpen() && journal.size() > 0) {
             saveXML();
-        } catch (Exception e) {
+        }
+    }
+
+    // Write the current data to destinations.xml through a temporary file and an atomic rename,
+    // so a crash can never leave a truncated file behind
+    private void writeSnapshot() {
+        XMLSnapshot current = snapshot;
+
+        Path target = Paths.get(xmlFilePath);
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        try (FileOutputStream file = new FileOutputStream(temp.toFile());
+             OutputStream out = new BufferedOutputStream(file)) {
+            XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+            new XMLDataWriter(writer, true).writeDocument(current.getUsers(), current.getDestinations());
+            writer.close();
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException | XMLStreamException e) {
+            throw new IllegalStateException("Cannot write " + temp, e);
+        }
+        try {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Flush the journal into destinations.xml and stop the background threads
+    public void close() {
+        compactor.shutdown();
+        recommender.shutdownNow();
+        xqueryRunner.close();
+        if (journal.isOpen()) {
+            saveXML();
+        }
+        try {
+            journal.close();
+        } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
+    // Add new destination to XML
+    public void addDestination(Destination dest) {
+        try {
+            awaitLoaded();
+            checkWritable();
+            checkValid(validator != null ? validator.validate(dest) : null);
+            CompletableFuture<Void> durable;
+            lastDestinationId.accumulateAndGet(dest.getId(), Math::max);
+            synchronized (writeLock) {
+                publish(snapshot.withDestinations(List.of(dest)));
+                durable = journal.append(XMLJournal.Entry.addDestination(dest));
+            }
+            // Wait outside the lock so concurrent writers share the same fsync
+            durable.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
     // Add new user to XML
     public void addUser(User user) {
         try {
-            Element root = document.getDocumentElement();
-            NodeList users = root.getElementsByTagName("users");
-            Element usersElement = (Element) users.item(0);
+            awaitLoaded();
+            checkWritable();
+            checkValid(validator != null ? validator.validate(user) : null);
+            CompletableFuture<Void> durable;
+            lastUserId.accumulateAndGet(user.getId(), Math::max);
+            synchronized (writeLock) {
+                publish(snapshot.withUsers(List.of(user)));
+                durable = journal.append(XMLJournal.Entry.addUser(user));
+            }
+            durable.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 
-            // Create new user element
-            Element userElement = document.createElement("user");
-            userElement.setAttribute("id", String.valueOf(user.getId()));
+    // Bulk insert: allocates a block of ids, publishes one snapshot and journals the whole
+    // batch with a single fsync. Returns the first allocated id.
+    public int addDestinations(List<Destination> batch) {
+        if (batch.isEmpty()) return 0;
+        awaitLoadedUninterruptibly();
+        checkWritable();
+        int firstId = lastDestinationId.getAndAdd(batch.size()) + 1;
+        List<XMLJournal.Entry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).setId(firstId + i);
+            entries.add(XMLJournal.Entry.addDestination(batch.get(i)));
+        }
+        checkValid(validator != null ? validator.validateDestinations(batch) : null);
 
-            Element firstName = document.createElement("firstName");
-            firstName.setTextContent(user.getFirstName());
-            userElement.appendChild(firstName);
+        CompletableFuture<Void> durable;
+        synchronized (writeLock) {
+            publish(snapshot.withDestinations(batch));
+            durable = journal.append(entries);
+        }
+        durable.join();
+        return firstId;
+    }
 
-            Element lastName = document.createElement("lastName");
-            lastName.setTextContent(user.getLastName());
-            userElement.appendChild(lastName);
+    // Bulk insert of users, see addDestinations
+    public int addUsers(List<User> batch) {
+        if (batch.isEmpty()) return 0;
+        awaitLoadedUninterruptibly();
+        checkWritable();
+        int firstId = lastUserId.getAndAdd(batch.size()) + 1;
+        List<XMLJournal.Entry> entries = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).setId(firstId + i);
+            entries.add(XMLJournal.Entry.addUser(batch.get(i)));
+        }
+        checkValid(validator != null ? validator.validateUsers(batch) : null);
 
-            Element availability = document.createElement("availability");
-            availability.setTextContent(String.valueOf(user.getAvailability()));
-            userElement.appendChild(availability);
+        CompletableFuture<Void> durable;
+        synchronized (writeLock) {
+            publish(snapshot.withUsers(batch));
+            durable = journal.append(entries);
+        }
+        durable.join();
+        return firstId;
+    }
 
-            Element preferredActivity = document.createElement("preferredActivity");
-            preferredActivity.setTextContent(user.getPreferredActivity());
-            userElement.appendChild(preferredActivity);
+    // Rejects a write that does not match destinations.xsd
+    private static void checkValid(String error) {
+        if (error != null) {
+            throw new IllegalArgumentException("Schema validation failed: " + error);
+        }
+    }
 
-            Element budget = document.createElement("budget");
-            budget.setTextContent(String.valueOf(user.getBudget()));
-            userElement.appendChild(budget);
+    // Swap in a new version of the data (caller holds writeLock)
+    private void publish(XMLSnapshot next) {
+        snapshot = next;
+        renderedHtml.clear();
+    }
 
-            usersElement.appendChild(userElement);
-            saveXML();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+    // Current published data; callers should read it once per request
+    public XMLSnapshot getSnapshot() {
+        return snapshot;
     }
 
     // Get first user (for recommendations)
     public User getFirstUser() {
-        try {
-            XPathFactory xPathFactory = XPathFactory.newInstance();
-            XPath xpath = xPathFactory.newXPath();
-            XPathExpression expr = xpath.compile("//user[1]");
-
-            Node userNode = (Node) expr.evaluate(document, XPathConstants.NODE);
-            if (userNode == null) return null;
-
-            Element userElement = (Element) userNode;
-            User user = new User();
-            user.setId(Integer.parseInt(userElement.getAttribute("id")));
-            user.setFirstName(getElementText(userElement, "firstName"));
-            user.setLastName(getElementText(userElement, "lastName"));
-            user.setAvailability(Integer.parseInt(getElementText(userElement, "availability")));
-            user.setPreferredActivity(getElementText(userElement, "preferredActivity"));
-            user.setBudget(Double.parseDouble(getElementText(userElement, "budget")));
-
-            return user;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
+        if ("saxon".equals(queryEngine)) {
+            return saxonLookup.getFirstUser();
         }
+        if ("xpath".equals(queryEngine)) {
+            try {
+                return xpathLookup.selectFirst(XPathLookup.Query.FIRST_USER, XMLService::parseUser);
+            } catch (Exception e) {
+                e.printStackTrace();
+                return null;
+            }
+        }
+        List<User> users = snapshot.getUsers();
+        return users.isEmpty() ? null : users.get(0);
+    }
+
+    // User by id, or null
+    public User getUser(int id) {
+        return snapshot.getUser(id);
     }
 
     // Get destinations by budget (Task 6)
     public List<Destination> getDestinationsByBudget(double maxBudget) {
-        List<Destination> results = new ArrayList<>();
-        try {
-            XPathFactory xPathFactory = XPathFactory.newInstance();
-            XPath xpath = xPathFactory.newXPath();
-            String expression = String.format("//destination[budget <= %f]", maxBudget);
-            XPathExpression expr = xpath.compile(expression);
-
-            NodeList nodes = (NodeList) expr.evaluate(document, XPathConstants.NODESET);
-            for (int i = 0; i < nodes.getLength(); i++) {
-                Element element = (Element) nodes.item(i);
-                results.add(parseDestination(element));
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return results;
+        return lookup().getByMaxBudget(maxBudget);
     }
 
     // Get destinations matching at least 2 of 3 criteria (Task 7)
     public List<Destination> getRecommendedDestinations(User user) {
-        List<Destination> results = new ArrayList<>();
-        try {
-            XPathFactory xPathFactory = XPathFactory.newInstance();
-            XPath xpath = xPathFactory.newXPath();
-
-            // Get all destinations
-            XPathExpression expr = xpath.compile("//destination");
-            NodeList nodes = (NodeList) expr.evaluate(document, XPathConstants.NODESET);
-
-            for (int i = 0; i < nodes.getLength(); i++) {
-                Element element = (Element) nodes.item(i);
-                Destination dest = parseDestination(element);
+        return getRecommendedDestinations(user, Integer.MAX_VALUE);
+    }
 
-                int matchCount = 0;
-                if (dest.getBudget() <= user.getBudget()) matchCount++;
-                if (dest.getDuration() <= user.getAvailability()) matchCount++;
-                if (dest.getActivity1().equals(user.getPreferredActivity()) ||
-                    dest.getActivity2().equals(user.getPreferredActivity())) matchCount++;
+    // Top-k recommendations (cheapest first) from the snapshot's precomputed bitsets
+    public List<Destination> getRecommendedDestinations(User user, int limit) {
+        return snapshot.getRecommendations().recommend(user, limit);
+    }
 
-                if (matchCount >= 2) {
-                    results.add(dest);
+    // Recommendations for every user, computed in parallel on the service's own fork-join pool.
+    // Results come back through a bounded queue and are handed to the sink on the calling thread,
+    // in no particular order; idle runs whenever the sink has to wait (e.g. to flush). A slow sink
+    // holds back the scoring instead of piling up results. All users see the same snapshot.
+    public void forEachUserRecommendation(int limit, BiConsumer<User, List<Destination>> sink, Runnable idle) {
+        XMLSnapshot current = snapshot;
+        RecommendationEngine engine = current.getRecommendations();
+        List<User> users = current.getUsers();
+        BlockingQueue<Map.Entry<User, List<Destination>>> results = new ArrayBlockingQueue<>(RECOMMENDATION_QUEUE);
+        AtomicBoolean stopped = new AtomicBoolean();
+        Future<?> scoring = recommender.submit(() -> users.parallelStream().forEach(user -> {
+            Map.Entry<User, List<Destination>> result = Map.entry(user, engine.recommend(user, limit));
+            try {
+                while (!stopped.get() && !results.offer(result, 100, TimeUnit.MILLISECONDS)) {
+                    // The caller is still writing; retry unless it gave up
                 }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
+        }));
 
-            // Sort by budget (ascending)
-            results.sort(Comparator.comparingDouble(Destination::getBudget));
-        } catch (Exception e) {
-            e.printStackTrace();
+        try {
+            int remaining = users.size();
+            while (remaining > 0) {
+                Map.Entry<User, List<Destination>> result = results.poll();
+                if (result == null) {
+                    idle.run();
+                    result = results.poll(100, TimeUnit.MILLISECONDS);
+                }
+                if (result != null) {
+                    sink.accept(result.getKey(), result.getValue());
+                    remaining--;
+                } else if (scoring.isDone() && results.isEmpty()) {
+                    // Finished without producing every result: surface its failure
+                    scoring.get();
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Scoring recommendations failed", e.getCause());
+        } finally {
+            // Lets the workers drop their remaining results if the sink failed
+            stopped.set(true);
         }
-        return results;
     }
 
     // Get destination by name (Task 9)
     public Destination getDestinationByName(String name) {
-        try {
-            XPathFactory xPathFactory = XPathFactory.newInstance();
-            XPath xpath = xPathFactory.newXPath();
-            String expression = String.format("//destination[name='%s']", name);
-            XPathExpression expr = xpath.compile(expression);
-
-            Node node = (Node) expr.evaluate(document, XPathConstants.NODE);
-            if (node != null) {
-                return parseDestination((Element) node);
+        return lookup().getByName(name);
+    }
+
+    // Full-text search over names and descriptions, best match first
+    public List<Destination> searchDestinations(String query, int limit) {
+        return snapshot.getSearchIndex().search(query, limit);
+    }
+
+    // Destinations within a budget range, a maximum duration and offering any of the activities.
+    // sort is budget (default), -budget, duration, -duration or name
+    public List<Destination> findDestinations(Double minBudget, Double maxBudget, Integer maxDuration,
+                                              Collection<String> activities, String sort, int limit) {
+        RecommendationEngine engine = snapshot.getRecommendations();
+        BitSet matches = engine.filter(minBudget, maxBudget, maxDuration, activities);
+        List<Destination> results = new ArrayList<>(Math.max(0, Math.min(limit, matches.cardinality())));
+        if (sort == null || sort.equals("budget")) {
+            // Ranks are already in budget order
+            for (int rank = matches.nextSetBit(0); rank >= 0 && results.size() < limit;
+                 rank = matches.nextSetBit(rank + 1)) {
+                results.add(engine.get(rank));
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } else if (sort.equals("-budget")) {
+            for (int rank = matches.previousSetBit(engine.size() - 1); rank >= 0 && results.size() < limit;
+                 rank = matches.previousSetBit(rank - 1)) {
+                results.add(engine.get(rank));
+            }
+        } else {
+            Comparator<Destination> order;
+            if (sort.equals("duration")) {
+                order = Comparator.comparingInt(Destination::getDuration);
+            } else if (sort.equals("-duration")) {
+                order = Comparator.comparingInt(Destination::getDuration).reversed();
+            } else if (sort.equals("name")) {
+                order = Comparator.comparing(Destination::getName, Comparator.nullsLast(String::compareTo));
+            } else {
+                throw new IllegalArgumentException("sort must be budget, -budget, duration, -duration or name");
+            }
+            // Ties keep budget order
+            matches.stream().mapToObj(engine::get).sorted(order).limit(limit).forEach(results::add);
+        }
+        return results;
+    }
+
+    // Facet counts for the filter sidebar: destinations per activity, per budget band and per
+    // duration band. Each facet is counted under the other facets' filters but not its own, so
+    // every option shows how many results selecting it would give. All counts are bitset
+    // cardinalities over the snapshot's columns; nothing is scanned.
+    public Map<String, Object> getFacets(Double minBudget, Double maxBudget, Integer maxDuration,
+                                         Collection<String> activities) {
+        RecommendationEngine engine = snapshot.getRecommendations();
+
+        BitSet forBudget = engine.filter(null, null, maxDuration, activities);
+        int below = engine.belowBudget(BUDGET_BANDS[0]);
+        int within = engine.withinBudget(BUDGET_BANDS[1]);
+        Map<String, Integer> budget = new LinkedHashMap<>();
+        budget.put("<" + (int) BUDGET_BANDS[0], forBudget.get(0, below).cardinality());
+        budget.put((int) BUDGET_BANDS[0] + "-" + (int) BUDGET_BANDS[1], forBudget.get(below, within).cardinality());
+        budget.put(">" + (int) BUDGET_BANDS[1], forBudget.get(within, engine.size()).cardinality());
+
+        BitSet forDuration = engine.filter(minBudget, maxBudget, null, activities);
+        Map<String, Integer> duration = new LinkedHashMap<>();
+        int shorter = 0;
+        for (int i = 0; i < DURATION_BANDS.length; i++) {
+            int from = i == 0 ? 1 : DURATION_BANDS[i - 1] + 1;
+            int upTo = intersectionSize(forDuration, engine.durationAtMost(DURATION_BANDS[i]));
+            duration.put(from + "-" + DURATION_BANDS[i], upTo - shorter);
+            shorter = upTo;
         }
-        return null;
+        duration.put((DURATION_BANDS[DURATION_BANDS.length - 1] + 1) + "+", forDuration.cardinality() - shorter);
+
+        BitSet forActivity = engine.filter(minBudget, maxBudget, maxDuration, null);
+        Map<String, Integer> byActivity = new LinkedHashMap<>();
+        for (String activity : engine.getActivities()) {
+            byActivity.put(activity, intersectionSize(forActivity, engine.withActivity(activity)));
+        }
+
+        Map<String, Object> facets = new LinkedHashMap<>();
+        facets.put("total", engine.filter(minBudget, maxBudget, maxDuration, activities).cardinality());
+        facets.put("activities", byActivity);
+        facets.put("budget", budget);
+        facets.put("duration", duration);
+        return facets;
+    }
+
+    private static int intersectionSize(BitSet a, BitSet b) {
+        BitSet both = (BitSet) a.clone();
+        both.and(b);
+        return both.cardinality();
     }
 
     // Get destinations by activity (Task 10)
     public List<Destination> getDestinationsByActivity(String activity) {
-        List<Destination> results = new ArrayList<>();
-        try {
-            XPathFactory xPathFactory = XPathFactory.newInstance();
-            XPath xpath = xPathFactory.newXPath();
-            String expression = String.format("//destination[activity1='%s' or activity2='%s']",
-                activity, activity);
-            XPathExpression expr = xpath.compile(expression);
-
-            NodeList nodes = (NodeList) expr.evaluate(document, XPathConstants.NODESET);
-            for (int i = 0; i < nodes.getLength(); i++) {
-                Element element = (Element) nodes.item(i);
-                results.add(parseDestination(element));
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
+        return lookup().getByActivity(activity);
+    }
+
+    // One page of destinations in id order; cursor is null for the first page
+    public Page<Destination> getDestinationsPage(String cursor, int limit) {
+        int afterId = cursor != null ? Integer.parseInt(PageCursor.decode(cursor, 1)[0]) : Integer.MIN_VALUE;
+        List<Destination> items = snapshot.getIndex().getPageAfter(afterId, limit + 1);
+        if (items.size() <= limit) {
+            return new Page<>(items, null);
         }
-        return results;
+        items = items.subList(0, limit);
+        return new Page<>(items, PageCursor.encode(String.valueOf(items.get(limit - 1).getId())));
     }
 
     // Get all destinations
     public List<Destination> getAllDestinations() {
-        List<Destination> results = new ArrayList<>();
-        try {
-            XPathFactory xPathFactory = XPathFactory.newInstance();
-            XPath xpath = xPathFactory.newXPath();
-            XPathExpression expr = xpath.compile("//destination");
-
-            NodeList nodes = (NodeList) expr.evaluate(document, XPathConstants.NODESET);
-            for (int i = 0; i < nodes.getLength(); i++) {
-                Element element = (Element) nodes.item(i);
-                results.add(parseDestination(element));
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return results;
+        return lookup().getAll();
     }
 
-    // Get next available ID for destination
+    // Get next available ID for destination (unique, even under concurrent inserts)
     public int getNextDestinationId() {
-        try {
-            XPathFactory xPathFactory = XPathFactory.newInstance();
-            XPath xpath = xPathFactory.newXPath();
-            XPathExpression expr = xpath.compile("//destination/@id");
-
-            NodeList nodes = (NodeList) expr.evaluate(document, XPathConstants.NODESET);
-            int maxId = 0;
-            for (int i = 0; i < nodes.getLength(); i++) {
-                int id = Integer.parseInt(nodes.item(i).getNodeValue());
-                if (id > maxId) maxId = id;
-            }
-            return maxId + 1;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return 1;
-        }
+        awaitLoadedUninterruptibly();
+        return lastDestinationId.incrementAndGet();
     }
 
     // Get next available ID for user
     public int getNextUserId() {
-        try {
-            XPathFactory xPathFactory = XPathFactory.newInstance();
-            XPath xpath = xPathFactory.newXPath();
-            XPathExpression expr = xpath.compile("//user/@id");
-
-            NodeList nodes = (NodeList) expr.evaluate(document, XPathConstants.NODESET);
-            int maxId = 0;
-            for (int i = 0; i < nodes.getLength(); i++) {
-                int id = Integer.parseInt(nodes.item(i).getNodeValue());
-                if (id > maxId) maxId = id;
-            }
-            return maxId + 1;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return 1;
-        }
+        awaitLoadedUninterruptibly();
+        return lastUserId.incrementAndGet();
     }
 
     // Transform XML to HTML using XSLT (Task 8)
     public String transformToHTML(String preferredActivity, String xsltPath) {
-        try {
-            // Use Saxon for XSLT 2.0 support
-            Processor processor = new Processor(false);
-            XsltCompiler compiler = processor.newXsltCompiler();
-            XsltExecutable stylesheet = compiler.compile(new StreamSource(new File(xsltPath)));
+        XMLSnapshot current = snapshot;
+        String cacheKey = current.getVersion() + "|" + preferredActivity;
+        String cached = renderedHtml.get(cacheKey);
+        if (cached != null) {
+            return cached;
+        }
 
-            Xslt30Transformer transformer = stylesheet.load30();
+        try {
+            Xslt30Transformer transformer = getStylesheet(xsltPath).load30();
 
             // Set parameter
             XdmAtomicValue activityValue = new XdmAtomicValue(preferredActivity);
@@ -338,42 +652,95 @@ public class XMLService {
             serializer.setOutputProperty(Serializer.Property.METHOD, "html");
             serializer.setOutputProperty(Serializer.Property.INDENT, "yes");
 
-            transformer.transform(new StreamSource(new File(xmlFilePath)), serializer);
+            transformer.transform(current.getTree(processor).asSource(), serializer);
 
-            return writer.toString();
+            String html = writer.toString();
+            renderedHtml.put(cacheKey, html);
+            return html;
         } catch (Exception e) {
             e.printStackTrace();
             return "<html><body><p>Error transforming XML: " + e.getMessage() + "</p></body></html>";
         }
     }
 
-    // Get all unique activities
-    public Set<String> getAllActivities() {
-        Set<String> activities = new HashSet<>();
-        try {
-            XPathFactory xPathFactory = XPathFactory.newInstance();
-            XPath xpath = xPathFactory.newXPath();
+    // XQuery over the current data
+    public XQueryRunner getXQueryRunner() {
+        return xqueryRunner;
+    }
 
-            XPathExpression expr1 = xpath.compile("//destination/activity1/text()");
-            XPathExpression expr2 = xpath.compile("//destination/activity2/text()");
+    // Current data version, incremented on every change
+    public long getDataVersion() {
+        return snapshot.getVersion();
+    }
 
-            NodeList nodes1 = (NodeList) expr1.evaluate(document, XPathConstants.NODESET);
-            NodeList nodes2 = (NodeList) expr2.evaluate(document, XPathConstants.NODESET);
+    // Opaque tag of the current data, unique across restarts (used for ETags)
+    public String getDataTag() {
+        return Long.toString(epoch, 36) + "-" + snapshot.getVersion();
+    }
 
-            for (int i = 0; i < nodes1.getLength(); i++) {
-                activities.add(nodes1.item(i).getNodeValue());
-            }
-            for (int i = 0; i < nodes2.getLength(); i++) {
-                activities.add(nodes2.item(i).getNodeValue());
+    // Time of the last change (milliseconds)
+    public long getLastModified() {
+        return snapshot.getTimestamp();
+    }
+
+    // Compiled stylesheet, compiled once (XsltExecutable is thread-safe)
+    private XsltExecutable getStylesheet(String xsltPath) throws SaxonApiException {
+        XsltExecutable compiled = stylesheet;
+        if (compiled != null && xsltPath.equals(stylesheetPath)) {
+            return compiled;
+        }
+        synchronized (this) {
+            if (stylesheet == null || !xsltPath.equals(stylesheetPath)) {
+                XsltCompiler compiler = processor.newXsltCompiler();
+                stylesheet = compiler.compile(new StreamSource(new File(xsltPath)));
+                stylesheetPath = xsltPath;
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            return stylesheet;
+        }
+    }
+
+    private XdmNode currentSourceNode() {
+        try {
+            return snapshot.getTree(processor);
+        } catch (SaxonApiException e) {
+            throw new IllegalStateException("Cannot build Saxon document", e);
+        }
+    }
+
+    // Get all unique activities
+    public Set<String> getAllActivities() {
+        return snapshot.getIndex().getActivities();
+    }
+
+    // Engine serving the destination lookups
+    private DestinationLookup lookup() {
+        switch (queryEngine) {
+            case "xpath":
+                return xpathLookup;
+            case "saxon":
+                return saxonLookup;
+            default:
+                return snapshot.getIndex();
         }
-        return activities;
+    }
+
+    // Helper method to parse user from Element
+    static User parseUser(Node node) {
+        if (node == null) return null;
+
+        Element userElement = (Element) node;
+        User user = new User();
+        user.setId(Integer.parseInt(userElement.getAttribute("id")));
+        user.setFirstName(getElementText(userElement, "firstName"));
+        user.setLastName(getElementText(userElement, "lastName"));
+        user.setAvailability(Integer.parseInt(getElementText(userElement, "availability")));
+        user.setPreferredActivity(getElementText(userElement, "preferredActivity"));
+        user.setBudget(Double.parseDouble(getElementText(userElement, "budget")));
+        return user;
     }
 
     // Helper method to parse destination from Element
-    private Destination parseDestination(Element element) {
+    static Destination parseDestination(Element element) {
         Destination dest = new Destination();
         dest.setId(Integer.parseInt(element.getAttribute("id")));
         dest.setName(getElementText(element, "name"));
@@ -386,7 +753,7 @@ public class XMLService {
     }
 
     // Helper method to get element text
-    private String getElementText(Element parent, String tagName) {
+    static String getElementText(Element parent, String tagName) {
         NodeList nodes = parent.getElementsByTagName(tagName);
         if (nodes.getLength() > 0) {
             return nodes.item(0).getTextContent();
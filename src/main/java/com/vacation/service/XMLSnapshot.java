@@ -0,0 +1,239 @@
+package com.vacation.service;
+
+import com.vacation.model.Destination;
+import com.vacation.model.User;
+import net.sf.saxon.s9api.BuildingStreamWriterImpl;
+import net.sf.saxon.s9api.Processor;
+import net.sf.saxon.s9api.SaxonApiException;
+import net.sf.saxon.s9api.XdmNode;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.dom.DOMResult;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Immutable published version of the XML data. XMLService swaps in a new snapshot on every
+// change; readers keep using the one they picked up and never see a half-applied write.
+// Tree views (TinyTree, DOM) and indexes are derived lazily, once per snapshot, so a write only
+// pays for copying the lists.
+public class XMLSnapshot {
+    public static final XMLSnapshot EMPTY =
+        new XMLSnapshot(0, Collections.emptyList(), Collections.emptyList());
+    // Additions carried over unread snapshots; past that the next read rebuilds the indexes
+    private static final int MAX_PENDING = 1024;
+
+    private final long version;
+    private final long timestamp = System.currentTimeMillis();
+    private final List<Destination> destinations;
+    private final List<User> users;
+    private volatile DestinationIndex index;
+    // Index of the previous snapshot and the destinations added since, when it had been built:
+    // the index is then derived from it instead of sorting everything again (guarded by this)
+    private DestinationIndex previousIndex;
+    private List<Destination> added;
+    private volatile XdmNode tree;
+    private volatile Document dom;
+    private volatile RecommendationEngine recommendations;
+    private volatile Map<Integer, User> usersById;
+    private volatile SearchIndex search;
+    // Same for the full-text index (guarded by this)
+    private SearchIndex previousSearch;
+    private List<Destination> searchAdded;
+
+    public XMLSnapshot(long version, List<Destination> destinations, List<User> users) {
+        this.version = version;
+        this.destinations = Collections.unmodifiableList(destinations);
+        this.users = Collections.unmodifiableList(users);
+    }
+
+    // New snapshot with the given destinations appended
+    public XMLSnapshot withDestinations(List<Destination> added) {
+        List<Destination> copy = new ArrayList<>(destinations.size() + added.size());
+        copy.addAll(destinations);
+        copy.addAll(added);
+        XMLSnapshot next = new XMLSnapshot(version + 1, copy, users);
+        synchronized (this) {
+            if (index != null) {
+                next.previousIndex = index;
+                next.added = added;
+            } else if (previousIndex != null && this.added.size() + added.size() <= MAX_PENDING) {
+                // Not read since: derive from the same index, with both sets of additions
+                next.previousIndex = previousIndex;
+                next.added = concat(this.added, added);
+            }
+            if (search != null) {
+                next.previousSearch = search;
+                next.searchAdded = added;
+            } else if (previousSearch != null && searchAdded.size() + added.size() <= MAX_PENDING) {
+                next.previousSearch = previousSearch;
+                next.searchAdded = concat(searchAdded, added);
+            }
+        }
+        return next;
+    }
+
+    private static List<Destination> concat(List<Destination> first, List<Destination> second) {
+        List<Destination> result = new ArrayList<>(first.size() + second.size());
+        result.addAll(first);
+        result.addAll(second);
+        return result;
+    }
+
+    // New snapshot with the given users appended
+    public XMLSnapshot withUsers(List<User> added) {
+        List<User> copy = new ArrayList<>(users.size() + added.size());
+        copy.addAll(users);
+        copy.addAll(added);
+        XMLSnapshot next = new XMLSnapshot(version + 1, destinations, copy);
+        // Same destinations: share the index, or whatever it would be derived from
+        synchronized (this) {
+            next.index = index;
+            next.previousIndex = previousIndex;
+            next.added = this.added;
+            next.search = search;
+            next.previousSearch = previousSearch;
+            next.searchAdded = searchAdded;
+        }
+        return next;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    // When this version was published (milliseconds)
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public List<Destination> getDestinations() {
+        return destinations;
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    // User with the given id, or null
+    public User getUser(int id) {
+        Map<Integer, User> result = usersById;
+        if (result == null) {
+            synchronized (this) {
+                result = usersById;
+                if (result == null) {
+                    result = new HashMap<>(users.size() * 2);
+                    for (User user : users) {
+                        result.putIfAbsent(user.getId(), user);
+                    }
+                    usersById = result;
+                }
+            }
+        }
+        return result.get(id);
+    }
+
+    // Destination index of this snapshot, built on first use
+    public DestinationIndex getIndex() {
+        DestinationIndex result = index;
+        if (result == null) {
+            synchronized (this) {
+                result = index;
+                if (result == null) {
+                    result = previousIndex != null
+                        ? previousIndex.withDestinations(destinations, added)
+                        : new DestinationIndex(destinations);
+                    index = result;
+                    previousIndex = null;
+                    added = null;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Recommendation bitsets for this snapshot, built on first use
+    public RecommendationEngine getRecommendations() {
+        RecommendationEngine result = recommendations;
+        if (result == null) {
+            synchronized (this) {
+                result = recommendations;
+                if (result == null) {
+                    result = new RecommendationEngine(destinations);
+                    recommendations = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Full-text index of this snapshot, built on first use; derived from the last one read when
+    // possible, which only tokenises the destinations added since
+    public SearchIndex getSearchIndex() {
+        SearchIndex result = search;
+        if (result == null) {
+            synchronized (this) {
+                result = search;
+                if (result == null) {
+                    result = previousSearch != null
+                        ? previousSearch.withDestinations(searchAdded)
+                        : new SearchIndex(destinations);
+                    search = result;
+                    previousSearch = null;
+                    searchAdded = null;
+                }
+            }
+        }
+        return result;
+    }
+
+    // Saxon TinyTree of this snapshot (thread-safe for concurrent reads)
+    public XdmNode getTree(Processor processor) throws SaxonApiException {
+        XdmNode result = tree;
+        if (result == null) {
+            synchronized (this) {
+                result = tree;
+                if (result == null) {
+                    BuildingStreamWriterImpl writer = processor.newDocumentBuilder().newBuildingStreamWriter();
+                    try {
+                        new XMLDataWriter(writer, false).writeDocument(users, destinations);
+                    } catch (Exception e) {
+                        throw new SaxonApiException(e);
+                    }
+                    result = writer.getDocumentNode();
+                    tree = result;
+                }
+            }
+        }
+        return result;
+    }
+
+    // DOM of this snapshot; never modified after it is built
+    public Document getDom() {
+        Document result = dom;
+        if (result == null) {
+            synchronized (this) {
+                result = dom;
+                if (result == null) {
+                    try {
+                        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+                        factory.setNamespaceAware(true);
+                        result = factory.newDocumentBuilder().newDocument();
+                        XMLStreamWriter writer = XMLOutputFactory.newInstance()
+                            .createXMLStreamWriter(new DOMResult(result));
+                        new XMLDataWriter(writer, false).writeDocument(users, destinations);
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Cannot build DOM document", e);
+                    }
+                    dom = result;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,248 @@
+package com.vacation.service;
+
+import com.vacation.model.Destination;
+import com.vacation.model.User;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Streaming (StAX) loader for destinations.xml.
+// Reads <destination> and <user> elements one at a time straight into model objects, without
+// building a DOM, so memory stays proportional to the data rather than to the parsed tree.
+public class XMLStreamLoader {
+    // Progress is reported every PROGRESS_INTERVAL records
+    private static final int PROGRESS_INTERVAL = 10000;
+    // Longest XML declaration looked for at the start of a fragment
+    private static final int MAX_DECLARATION = 256;
+    private static final Pattern ENCODING = Pattern.compile("encoding\\s*=\\s*[\"']([A-Za-z0-9._-]+)[\"']");
+
+    public interface ProgressListener {
+        void onProgress(long records, long bytesRead, long totalBytes);
+    }
+
+    // Result of a load
+    public static class LoadedData {
+        private final List<Destination> destinations = new ArrayList<>();
+        private final List<User> users = new ArrayList<>();
+
+        public List<Destination> getDestinations() {
+            return destinations;
+        }
+
+        public List<User> getUsers() {
+            return users;
+        }
+    }
+
+    private final XMLInputFactory inputFactory;
+    // Activity names repeat across the catalogue, keep one instance of each
+    private final Map<String, String> strings = new HashMap<>();
+
+    public XMLStreamLoader() {
+        inputFactory = XMLInputFactory.newInstance();
+        inputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        inputFactory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    public LoadedData load(File file, ProgressListener listener) throws IOException, XMLStreamException {
+        try (CountingInputStream in = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+            return load(in, file.length(), listener);
+        }
+    }
+
+    public LoadedData load(InputStream input, long totalBytes, ProgressListener listener)
+            throws XMLStreamException {
+        CountingInputStream in = input instanceof CountingInputStream
+            ? (CountingInputStream) input : new CountingInputStream(input);
+        return read(inputFactory.createXMLStreamReader(in), in, totalBytes, listener);
+    }
+
+    // Bulk import body: <destination> / <user> elements, either bare or inside any root element,
+    // optionally after an XML declaration. They are parsed inside a synthetic root, so a batch
+    // of bare elements is well-formed too.
+    public LoadedData loadFragment(InputStream input) throws IOException, XMLStreamException {
+        BufferedInputStream body = new BufferedInputStream(input);
+        Charset charset = skipDeclaration(body);
+        InputStream wrapped = new SequenceInputStream(Collections.enumeration(List.of(
+            new ByteArrayInputStream("<fragment>".getBytes(charset)), body,
+            new ByteArrayInputStream("</fragment>".getBytes(charset)))));
+        CountingInputStream in = new CountingInputStream(wrapped);
+        return read(inputFactory.createXMLStreamReader(in, charset.name()), in, -1, null);
+    }
+
+    // Skips a byte order mark and an XML declaration (it cannot follow the synthetic root);
+    // returns the declared encoding, UTF-8 by default
+    private static Charset skipDeclaration(BufferedInputStream in) throws IOException, XMLStreamException {
+        in.mark(MAX_DECLARATION);
+        String head = new String(in.readNBytes(MAX_DECLARATION), StandardCharsets.ISO_8859_1);
+        in.reset();
+        int start = head.startsWith("\u00EF\u00BB\u00BF") ? 3 : 0;
+        Charset charset = StandardCharsets.UTF_8;
+        int end = start;
+        if (head.startsWith("<?xml", start)) {
+            int close = head.indexOf("?>", start);
+            if (close < 0) {
+                throw new XMLStreamException("Unterminated XML declaration");
+            }
+            Matcher encoding = ENCODING.matcher(head.substring(start, close));
+            if (encoding.find()) {
+                charset = Charset.forName(encoding.group(1));
+            }
+            end = close + 2;
+        }
+        in.readNBytes(end);
+        return charset;
+    }
+
+    private LoadedData read(XMLStreamReader reader, CountingInputStream in, long totalBytes,
+                            ProgressListener listener) throws XMLStreamException {
+        LoadedData data = new LoadedData();
+        try {
+            long records = 0;
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) continue;
+
+                String element = reader.getLocalName();
+                if (element.equals("destination")) {
+                    data.destinations.add(readDestination(reader));
+                } else if (element.equals("user")) {
+                    data.users.add(readUser(reader));
+                } else {
+                    continue;
+                }
+
+                records++;
+                if (listener != null && records % PROGRESS_INTERVAL == 0) {
+                    listener.onProgress(records, in.getCount(), totalBytes);
+                }
+            }
+            if (listener != null) {
+                listener.onProgress(records, in.getCount(), totalBytes);
+            }
+        } finally {
+            reader.close();
+        }
+        return data;
+    }
+
+    // Reader is positioned on <destination>; returns positioned on </destination>
+    public Destination readDestination(XMLStreamReader reader) throws XMLStreamException {
+        Destination dest = new Destination();
+        dest.setId(readId(reader));
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            String text = reader.getElementText();
+            switch (name) {
+                case "name":
+                    dest.setName(text);
+                    break;
+                case "description":
+                    dest.setDescription(text);
+                    break;
+                case "duration":
+                    dest.setDuration(Integer.parseInt(text.trim()));
+                    break;
+                case "activity1":
+                    dest.setActivity1(intern(text));
+                    break;
+                case "activity2":
+                    dest.setActivity2(intern(text));
+                    break;
+                case "budget":
+                    dest.setBudget(Double.parseDouble(text.trim()));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return dest;
+    }
+
+    // Reader is positioned on <user>; returns positioned on </user>
+    public User readUser(XMLStreamReader reader) throws XMLStreamException {
+        User user = new User();
+        user.setId(readId(reader));
+        while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String name = reader.getLocalName();
+            String text = reader.getElementText();
+            switch (name) {
+                case "firstName":
+                    user.setFirstName(text);
+                    break;
+                case "lastName":
+                    user.setLastName(text);
+                    break;
+                case "availability":
+                    user.setAvailability(Integer.parseInt(text.trim()));
+                    break;
+                case "preferredActivity":
+                    user.setPreferredActivity(intern(text));
+                    break;
+                case "budget":
+                    user.setBudget(Double.parseDouble(text.trim()));
+                    break;
+                default:
+                    break;
+            }
+        }
+        return user;
+    }
+
+    // id attribute; 0 when absent (bulk imports get their ids allocated on insert)
+    private static int readId(XMLStreamReader reader) {
+        String id = reader.getAttributeValue(null, "id");
+        return id != null ? Integer.parseInt(id.trim()) : 0;
+    }
+
+    private String intern(String value) {
+        return strings.computeIfAbsent(value, key -> key);
+    }
+
+    // Input stream that counts the bytes read, for progress reporting
+    private static class CountingInputStream extends FilterInputStream {
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int n = super.read(buffer, offset, length);
+            if (n > 0) count += n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+}
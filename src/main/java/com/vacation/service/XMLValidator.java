@@ -0,0 +1,141 @@
+package com.vacation.service;
+
+import com.vacation.model.Destination;
+import com.vacation.model.User;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.SAXParseException;
+
+import javax.xml.XMLConstants;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import javax.xml.transform.sax.SAXSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import java.io.*;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Validation against destinations.xsd.
+// The Schema is compiled once and is thread-safe; Validators are not, so they are pooled.
+// Inserts validate only the new <destination>/<user> element (both are global elements in the
+// schema); the whole document can be checked with a streaming SAX pass.
+public class XMLValidator {
+    // Idle validators kept for reuse
+    private static final int MAX_POOLED = 16;
+
+    private final Schema schema;
+    private final Queue<Validator> pool = new ConcurrentLinkedQueue<>();
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    public XMLValidator(File xsdFile) throws SAXException {
+        SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+        schema = factory.newSchema(xsdFile);
+    }
+
+    // Error message for an invalid destination, null when it is valid
+    public String validate(Destination dest) {
+        return validate(writer -> writer.writeDestination(dest, 0));
+    }
+
+    // Error message for an invalid user, null when it is valid
+    public String validate(User user) {
+        return validate(writer -> writer.writeUser(user, 0));
+    }
+
+    // First error of a batch prefixed with its index, null when all are valid
+    public String validateDestinations(List<Destination> batch) {
+        Validator validator = borrow();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                Destination dest = batch.get(i);
+                String error = validate(validator, writer -> writer.writeDestination(dest, 0));
+                if (error != null) return "[" + i + "] " + error;
+            }
+            return null;
+        } finally {
+            release(validator);
+        }
+    }
+
+    public String validateUsers(List<User> batch) {
+        Validator validator = borrow();
+        try {
+            for (int i = 0; i < batch.size(); i++) {
+                User user = batch.get(i);
+                String error = validate(validator, writer -> writer.writeUser(user, 0));
+                if (error != null) return "[" + i + "] " + error;
+            }
+            return null;
+        } finally {
+            release(validator);
+        }
+    }
+
+    // Streaming validation of a whole document; throws on the first error
+    public void validateDocument(File file) throws IOException, SAXException {
+        Validator validator = borrow();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file), 64 * 1024)) {
+            InputSource source = new InputSource(in);
+            source.setSystemId(file.toURI().toString());
+            validator.validate(new SAXSource(source));
+        } finally {
+            release(validator);
+        }
+    }
+
+    private interface Fragment {
+        void write(XMLDataWriter writer) throws XMLStreamException;
+    }
+
+    private String validate(Fragment fragment) {
+        Validator validator = borrow();
+        try {
+            return validate(validator, fragment);
+        } finally {
+            release(validator);
+        }
+    }
+
+    private String validate(Validator validator, Fragment fragment) {
+        StringWriter xml = new StringWriter();
+        try {
+            XMLStreamWriter writer = outputFactory.createXMLStreamWriter(xml);
+            fragment.write(new XMLDataWriter(writer, false));
+            writer.close();
+        } catch (NumberFormatException e) {
+            // A budget that has no xs:decimal form (NaN, Infinity)
+            return "Budget is not a valid xs:decimal";
+        } catch (XMLStreamException e) {
+            return "Cannot serialize: " + e.getMessage();
+        }
+
+        try {
+            validator.validate(new StreamSource(new StringReader(xml.toString())));
+            return null;
+        } catch (SAXParseException e) {
+            return e.getMessage();
+        } catch (SAXException | IOException e) {
+            return "Validation failed: " + e.getMessage();
+        } finally {
+            validator.reset();
+        }
+    }
+
+    private Validator borrow() {
+        Validator validator = pool.poll();
+        return validator != null ? validator : schema.newValidator();
+    }
+
+    private void release(Validator validator) {
+        // Size check is approximate under contention, which is fine for a cache
+        if (pool.size() < MAX_POOLED) {
+            validator.reset();
+            pool.offer(validator);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.vacation.service;
+
+import com.vacation.model.Destination;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.namespace.QName;
+import javax.xml.xpath.*;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+// XPath queries over a DOM copy of the data, compiled once and parameterised through an
+// XPathVariableResolver. Values are bound as XPath variables, never spliced into the expression.
+// JAXP expressions are not thread-safe, so each servlet thread compiles its own copy once.
+public class XPathLookup implements DestinationLookup {
+
+    public enum Query {
+        ALL_DESTINATIONS("//destination"),
+        BY_BUDGET("//destination[budget <= $budget]"),
+        BY_NAME("//destination[name = $name]"),
+        BY_ACTIVITY("//destination[activity1 = $activity or activity2 = $activity]"),
+        FIRST_USER("//user[1]");
+
+        private final String expression;
+
+        Query(String expression) {
+            this.expression = expression;
+        }
+    }
+
+    // Variable values for the evaluation currently running on this thread
+    private static final ThreadLocal<Map<QName, Object>> VARIABLES =
+        ThreadLocal.withInitial(HashMap::new);
+
+    private static final ThreadLocal<Map<Query, XPathExpression>> COMPILED =
+        ThreadLocal.withInitial(XPathLookup::compileAll);
+
+    private final Supplier<Document> document;
+
+    public XPathLookup(Supplier<Document> document) {
+        this.document = document;
+    }
+
+    @Override
+    public List<Destination> getAll() {
+        return select(Query.ALL_DESTINATIONS, XPathLookup::toDestinations);
+    }
+
+    // Same order as the index: ascending budget, ties in document order (List.sort is stable)
+    @Override
+    public List<Destination> getByMaxBudget(double maxBudget) {
+        List<Destination> results = select(Query.BY_BUDGET, XPathLookup::toDestinations, "budget", maxBudget);
+        results.sort(Comparator.comparingDouble(Destination::getBudget));
+        return results;
+    }
+
+    @Override
+    public Destination getByName(String name) {
+        return selectFirst(Query.BY_NAME,
+            node -> node != null ? XMLService.parseDestination((Element) node) : null, "name", name);
+    }
+
+    @Override
+    public List<Destination> getByActivity(String activity) {
+        return select(Query.BY_ACTIVITY, XPathLookup::toDestinations, "activity", activity);
+    }
+
+    // Evaluate a query to a node set and map it; params are (variable name, value) pairs
+    public <T> T select(Query query, Function<NodeList, T> mapper, Object... params) {
+        return evaluate(query, XPathConstants.NODESET, result -> mapper.apply((NodeList) result), params);
+    }
+
+    // Evaluate a query to its first node (or null) and map it
+    public <T> T selectFirst(Query query, Function<Node, T> mapper, Object... params) {
+        return evaluate(query, XPathConstants.NODE, result -> mapper.apply((Node) result), params);
+    }
+
+    private <T> T evaluate(Query query, QName returnType, Function<Object, T> mapper, Object... params) {
+        Map<QName, Object> variables = VARIABLES.get();
+        for (int i = 0; i < params.length; i += 2) {
+            variables.put(new QName((String) params[i]), params[i + 1]);
+        }
+        try {
+            Document current = document.get();
+            // DOM is not thread-safe, even for reads, so results are mapped under the same lock
+            synchronized (current) {
+                return mapper.apply(COMPILED.get().get(query).evaluate(current, returnType));
+            }
+        } catch (XPathExpressionException e) {
+            throw new IllegalStateException("XPath evaluation failed: " + query.expression, e);
+        } finally {
+            variables.clear();
+        }
+    }
+
+    private static Map<Query, XPathExpression> compileAll() {
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        xpath.setXPathVariableResolver(variableName -> VARIABLES.get().get(variableName));
+
+        Map<Query, XPathExpression> compiled = new EnumMap<>(Query.class);
+        for (Query query : Query.values()) {
+            try {
+                compiled.put(query, xpath.compile(query.expression));
+            } catch (XPathExpressionException e) {
+                throw new IllegalStateException("Invalid XPath: " + query.expression, e);
+            }
+        }
+        return compiled;
+    }
+
+    private static List<Destination> toDestinations(NodeList nodes) {
+        List<Destination> results = new ArrayList<>(nodes.getLength());
+        for (int i = 0; i < nodes.getLength(); i++) {
+            results.add(XMLService.parseDestination((Element) nodes.item(i)));
+        }
+        return results;
+    }
+}
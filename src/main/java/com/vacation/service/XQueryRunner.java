@@ -0,0 +1,427 @@
+package com.vacation.service;
+
+import com.vacation.util.LruCache;
+import net.sf.saxon.Configuration;
+import net.sf.saxon.expr.Expression;
+import net.sf.saxon.expr.Literal;
+import net.sf.saxon.expr.SystemFunctionCall;
+import net.sf.saxon.expr.instruct.GlobalVariable;
+import net.sf.saxon.expr.parser.ExpressionTool;
+import net.sf.saxon.lib.EnvironmentVariableResolver;
+import net.sf.saxon.lib.Feature;
+import net.sf.saxon.om.FunctionItem;
+import net.sf.saxon.om.NamespaceUri;
+import net.sf.saxon.om.StructuredQName;
+import net.sf.saxon.query.XQueryExpression;
+import net.sf.saxon.query.XQueryFunction;
+import net.sf.saxon.s9api.*;
+import net.sf.saxon.trans.XPathException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+// XQuery over the in-memory XML data (the snapshot's TinyTree).
+// Compiled queries are cached by query text; XQueryExecutable is immutable and thread-safe.
+// Results are serialised item by item straight onto the caller's Writer.
+// Saxon-HE has no way to abort an evaluation (constant parts are even evaluated while compiling),
+// so compilation and evaluation run on a worker against a deadline: when it passes the output is
+// cut off and the caller stops waiting, but the query runs on until it ends. Each query holds
+// one of maxConcurrent slots until it really ends, so runaway queries take slots away and new
+// queries are rejected once none frees up in time: CPU use stays bounded by the slot count.
+// Queries only see the data: they run on a sandboxed configuration that refuses every document,
+// text, collection, module and environment variable lookup.
+public class XQueryRunner implements Closeable {
+    private static final Logger LOG = LoggerFactory.getLogger(XQueryRunner.class);
+
+    // Worker states: the caller either gets the result or gives up first
+    private static final int RUNNING = 0;
+    private static final int DONE = 1;
+    private static final int ABANDONED = 2;
+
+    // Allowed names for stored queries (files <name>.xq in the query directory)
+    private static final String QUERY_NAME = "[A-Za-z0-9_-]+";
+    // Functions that read outside the data; a query calling or referencing one is rejected when
+    // compiled (the sandbox would refuse the access anyway)
+    private static final Set<String> EXTERNAL_FUNCTIONS = Set.of(
+        "doc", "doc-available", "unparsed-text", "unparsed-text-lines", "unparsed-text-available",
+        "collection", "uri-collection", "json-doc", "transform", "environment-variable",
+        "available-environment-variables", "function-lookup");
+
+    // Static or dynamic error, timeout, or no free slot (rejected). Callers can only report it as
+    // an error response while no output has been written.
+    public static class QueryException extends Exception {
+        private final boolean timedOut;
+        private final boolean outputStarted;
+        private final boolean rejected;
+
+        public QueryException(String message, Throwable cause) {
+            this(message, cause, false, false);
+        }
+
+        public QueryException(String message, Throwable cause, boolean timedOut, boolean outputStarted) {
+            this(message, cause, timedOut, outputStarted, false);
+        }
+
+        public QueryException(String message, Throwable cause, boolean timedOut, boolean outputStarted,
+                              boolean rejected) {
+            super(message, cause);
+            this.timedOut = timedOut;
+            this.outputStarted = outputStarted;
+            this.rejected = rejected;
+        }
+
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        public boolean isOutputStarted() {
+            return outputStarted;
+        }
+
+        public boolean isRejected() {
+            return rejected;
+        }
+    }
+
+    private final Processor processor;
+    private final Supplier<XdmNode> document;
+    private final File queryDirectory;
+    private final LruCache<String, XQueryExecutable> compiled = new LruCache<>(64);
+    // Threads are only started for a query holding a slot, so there are at most maxConcurrent
+    private final ExecutorService workers;
+    private final long maxTimeoutMillis;
+    private final int maxConcurrent;
+    private final Semaphore slots;
+    // Queries whose caller gave up but which are still running
+    private final AtomicInteger overrunning = new AtomicInteger();
+
+    public XQueryRunner(Processor processor, Supplier<XdmNode> document, File queryDirectory,
+                        long maxTimeoutMillis, int maxConcurrent) {
+        this.processor = sandbox(processor);
+        this.document = document;
+        this.queryDirectory = queryDirectory;
+        this.maxTimeoutMillis = maxTimeoutMillis;
+        this.maxConcurrent = maxConcurrent;
+        this.slots = new Semaphore(maxConcurrent, true);
+        this.workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "xquery");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    // Processor for ad-hoc queries. It shares the name pool and document numbering of the data's
+    // processor, so the snapshot tree can be queried from it, but has no access to files, URLs,
+    // collections or the environment. The shared processor (XSLT) keeps its own settings.
+    private static Processor sandbox(Processor shared) {
+        Processor sandbox = new Processor(false);
+        Configuration config = sandbox.getUnderlyingConfiguration();
+        Configuration source = shared.getUnderlyingConfiguration();
+        config.setNamePool(source.getNamePool());
+        config.setDocumentNumberAllocator(source.getDocumentNumberAllocator());
+        config.setConfigurationProperty(Feature.ALLOWED_PROTOCOLS, "");
+        config.setResourceResolver(request -> {
+            throw new XPathException("Access to " + request.uri + " is not allowed", "FODC0002");
+        });
+        config.setUnparsedTextURIResolver((uri, encoding, configuration) -> {
+            throw new XPathException("Access to " + uri + " is not allowed", "FOUT1170");
+        });
+        config.setCollectionFinder((context, uri) -> {
+            throw new XPathException("Access to collection " + uri + " is not allowed", "FODC0002");
+        });
+        config.setConfigurationProperty(Feature.ENVIRONMENT_VARIABLE_RESOLVER, new EnvironmentVariableResolver() {
+            @Override
+            public Set<String> getAvailableEnvironmentVariables() {
+                return Collections.emptySet();
+            }
+
+            @Override
+            public String getEnvironmentVariable(String name) {
+                return null;
+            }
+        });
+        return sandbox;
+    }
+
+    // Upper bound (and default) for how long a caller waits for a query
+    public long getMaxTimeoutMillis() {
+        return maxTimeoutMillis;
+    }
+
+    // Slots in use, and how many of them hold queries past their deadline
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("maxConcurrent", maxConcurrent);
+        status.put("running", maxConcurrent - slots.availablePermits());
+        status.put("overrunning", overrunning.get());
+        return status;
+    }
+
+    // Text of a stored query, or null if there is no such query
+    public String getNamedQuery(String name) throws IOException {
+        if (!name.matches(QUERY_NAME)) return null;
+        File file = new File(queryDirectory, name + ".xq");
+        return file.isFile() ? new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8) : null;
+    }
+
+    // Names of the stored queries
+    public List<String> getNamedQueries() {
+        List<String> names = new ArrayList<>();
+        String[] files = queryDirectory.list((dir, file) -> file.endsWith(".xq"));
+        if (files != null) {
+            for (String file : files) {
+                names.add(file.substring(0, file.length() - 3));
+            }
+        }
+        names.sort(null);
+        return names;
+    }
+
+    // Compile (or reuse) a query; QueryException carries the first static error
+    public XQueryExecutable compile(String query) throws QueryException {
+        XQueryExecutable executable = compiled.get(query);
+        if (executable == null) {
+            List<XmlProcessingError> errors = new ArrayList<>();
+            XQueryCompiler compiler = processor.newXQueryCompiler();
+            compiler.setErrorList(errors);
+            compiler.setModuleURIResolver((moduleURI, baseURI, locations) -> {
+                throw new XPathException("Importing modules is not allowed", "XQST0059");
+            });
+            try {
+                executable = compiler.compile(query);
+            } catch (SaxonApiException e) {
+                throw new QueryException(errors.isEmpty() ? e.getMessage() : describe(errors.get(0)), e);
+            }
+            String external = externalFunction(executable.getUnderlyingCompiledQuery());
+            if (external != null) {
+                throw new QueryException("fn:" + external + "() is not allowed: queries can only read the data", null);
+            }
+            compiled.put(query, executable);
+        }
+        return executable;
+    }
+
+    // Run a query with the given external variables (bound as xs:untypedAtomic, so the declared
+    // types apply) and serialise the result with method xml, text, adaptive or json.
+    // Nothing is written before the first result item has been computed. Waiting for a slot,
+    // compiling and evaluating all count against timeoutMillis.
+    public void run(String query, Map<String, String> variables, String method, Writer out,
+                    long timeoutMillis) throws QueryException, IOException {
+        timeoutMillis = Math.min(timeoutMillis, maxTimeoutMillis);
+        long deadline = System.nanoTime() + timeoutMillis * 1_000_000;
+        try {
+            if (!slots.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw busy(null);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw busy(e);
+        }
+
+        DeadlineWriter guarded = new DeadlineWriter(out, deadline);
+        AtomicInteger state = new AtomicInteger(RUNNING);
+        long start = System.nanoTime();
+        Future<?> result;
+        try {
+            result = workers.submit(() -> {
+                try {
+                    evaluate(compile(query), variables, method, guarded);
+                    return null;
+                } finally {
+                    slots.release();
+                    if (!state.compareAndSet(RUNNING, DONE)) {
+                        overrunning.decrementAndGet();
+                        LOG.info("Overrunning XQuery ended after {} ms", (System.nanoTime() - start) / 1_000_000);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+            slots.release();
+            throw busy(e);
+        }
+
+        try {
+            result.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException | InterruptedException e) {
+            guarded.cut();
+            overrunning.incrementAndGet();
+            if (state.compareAndSet(RUNNING, ABANDONED)) {
+                // Cannot be stopped: it keeps its slot until it ends
+                LOG.warn("XQuery still running after {} ms, its slot stays taken until it ends "
+                    + "({} of {} slots held by overrunning queries)", timeoutMillis, overrunning.get(), maxConcurrent);
+            } else {
+                overrunning.decrementAndGet();
+            }
+            if (e instanceof InterruptedException) Thread.currentThread().interrupt();
+            throw timedOut(timeoutMillis, e, guarded);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof QueryException) throw (QueryException) cause;
+            if (cause instanceof DeadlineException) throw timedOut(timeoutMillis, cause, guarded);
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new QueryException(String.valueOf(cause.getMessage()), cause, false, guarded.isWritten());
+        }
+    }
+
+    private QueryException busy(Throwable cause) {
+        return new QueryException("All " + maxConcurrent + " XQuery slots are busy (" + overrunning.get()
+            + " with queries past their deadline), try again later", cause, false, false, true);
+    }
+
+    private static QueryException timedOut(long timeoutMillis, Throwable cause, DeadlineWriter out) {
+        return new QueryException("XQuery timed out after " + timeoutMillis + " ms", cause, true, out.isWritten());
+    }
+
+    private void evaluate(XQueryExecutable executable, Map<String, String> variables, String method,
+                          DeadlineWriter out) throws SaxonApiException, IOException {
+        try {
+            XQueryEvaluator evaluator = executable.load();
+            evaluator.setContextItem(document.get());
+            // Dynamic errors go back to the caller rather than to stderr
+            evaluator.setErrorReporter(error -> { });
+            for (Map.Entry<String, String> variable : variables.entrySet()) {
+                evaluator.setExternalVariable(new QName(variable.getKey()),
+                    new XdmAtomicValue(variable.getValue(), ItemType.UNTYPED_ATOMIC));
+            }
+
+            Serializer serializer = processor.newSerializer(out);
+            serializer.setOutputProperty(Serializer.Property.METHOD, method);
+            serializer.setOutputProperty(Serializer.Property.OMIT_XML_DECLARATION, "yes");
+            serializer.setOutputProperty(Serializer.Property.ENCODING, "UTF-8");
+            boolean json = method.equals("json");
+            boolean first = true;
+
+            // A JSON result is an array of the serialised items, other methods one item per line
+            for (XdmItem item : evaluator) {
+                out.checkDeadline();
+                if (first) {
+                    if (json) out.write('[');
+                } else {
+                    out.write(json ? "," : "\n");
+                }
+                serializer.serializeXdmValue(item);
+                first = false;
+            }
+            if (json) out.write(first ? "[]" : "]");
+            out.flush();
+        } catch (SaxonApiException | SaxonApiUncheckedException e) {
+            // The deadline check inside the serialiser surfaces as a Saxon error
+            if (out.isCut()) throw new DeadlineException();
+            throw e;
+        }
+    }
+
+    // First function of EXTERNAL_FUNCTIONS called or referenced (name#arity) in the query body,
+    // its declared functions or its global variables, or null
+    private static String externalFunction(XQueryExpression query) {
+        List<Expression> bodies = new ArrayList<>();
+        bodies.add(query.getExpression());
+        for (XQueryFunction function : query.getMainModule().getGlobalFunctionLibrary().getFunctionDefinitions()) {
+            bodies.add(function.getBody());
+        }
+        for (GlobalVariable variable : query.getMainModule().getAllGlobalVariables()) {
+            bodies.add(variable.getBody());
+        }
+        String[] found = new String[1];
+        for (Expression body : bodies) {
+            if (body != null && ExpressionTool.contains(body, false, expression -> {
+                StructuredQName name = null;
+                if (expression instanceof SystemFunctionCall) {
+                    name = ((SystemFunctionCall) expression).getFunctionName();
+                } else if (expression instanceof Literal
+                        && ((Literal) expression).getGroundedValue() instanceof FunctionItem) {
+                    name = ((FunctionItem) ((Literal) expression).getGroundedValue()).getFunctionName();
+                }
+                if (name != null && name.hasURI(NamespaceUri.FN) && EXTERNAL_FUNCTIONS.contains(name.getLocalPart())) {
+                    found[0] = name.getLocalPart();
+                    return true;
+                }
+                return false;
+            })) {
+                return found[0];
+            }
+        }
+        return null;
+    }
+
+    private static String describe(XmlProcessingError error) {
+        Location location = error.getLocation();
+        String where = location != null && location.getLineNumber() > 0
+            ? " (line " + location.getLineNumber() + ")" : "";
+        return error.getMessage() + where;
+    }
+
+    @Override
+    public void close() {
+        workers.shutdownNow();
+    }
+
+    private static class DeadlineException extends InterruptedIOException {
+        DeadlineException() {
+            super("XQuery deadline exceeded");
+        }
+    }
+
+    // Forwards to the response until the deadline; afterwards every write fails, so a runaway
+    // query stops at its next output and can never write to a response that was handed back
+    private static class DeadlineWriter extends Writer {
+        private final Writer out;
+        private final long deadline;
+        private boolean cut;
+        private boolean written;
+
+        DeadlineWriter(Writer out, long deadline) {
+            this.out = out;
+            this.deadline = deadline;
+        }
+
+        synchronized void cut() {
+            cut = true;
+        }
+
+        synchronized boolean isCut() {
+            return cut;
+        }
+
+        synchronized boolean isWritten() {
+            return written;
+        }
+
+        synchronized void checkDeadline() throws DeadlineException {
+            if (cut || System.nanoTime() > deadline) {
+                cut = true;
+                throw new DeadlineException();
+            }
+        }
+
+        @Override
+        public synchronized void write(char[] chars, int offset, int length) throws IOException {
+            checkDeadline();
+            written = true;
+            out.write(chars, offset, length);
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (!cut) out.flush();
+        }
+
+        // The underlying writer belongs to the caller
+        @Override
+        public void close() {
+        }
+    }
+}
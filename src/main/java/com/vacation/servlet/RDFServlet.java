@@ -1,7 +1,11 @@
 package com.vacation.servlet;
 
 import com.google.gson.Gson;
+import com.vacation.filter.CompressionFilter;
+import com.vacation.model.Page;
 import com.vacation.service.RDFService;
+import com.vacation.util.ConditionalGet;
+import com.vacation.util.JsonStream;
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
@@ -12,8 +16,15 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
 
 public class RDFServlet extends HttpServlet {
+    // Largest page served by paginated listings
+    private static final int MAX_PAGE_SIZE = 1000;
+    // Suggested wait before retrying a rejected SPARQL query
+    private static final int SPARQL_RETRY_AFTER_SECONDS = 2;
+
     private RDFService rdfService;
     private Gson gson;
 
@@ -21,8 +32,29 @@ public class RDFServlet extends HttpServlet {
     public void init() throws ServletException {
         super.init();
         String contextPath = getServletContext().getRealPath("/WEB-INF/classes");
-        rdfService = new RDFService(contextPath);
+        rdfService = new RDFService(contextPath, loadSettings());
         gson = new Gson();
+        // Lets the compression filter serve cached bytes while the data is unchanged
+        getServletContext().setAttribute(CompressionFilter.ETAG_ATTRIBUTE + getServletName(),
+                (Supplier<String>) this::currentETag);
+    }
+
+    @Override
+    public void destroy() {
+        getServletContext().removeAttribute(CompressionFilter.ETAG_ATTRIBUTE + getServletName());
+        rdfService.close();
+        super.destroy();
+    }
+
+    // Servlet init parameters from web.xml, passed on to the service
+    private Properties loadSettings() {
+        Properties settings = new Properties();
+        Enumeration<String> names = getInitParameterNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            settings.setProperty(name, getInitParameter(name));
+        }
+        return settings;
     }
 
     @Override
@@ -35,22 +67,34 @@ public class RDFServlet extends HttpServlet {
         PrintWriter out = response.getWriter();
 
         try {
+            // Everything but the cache statistics derives from the data version: answer
+            // conditional requests before running any query
+            if (!"/sparql/stats".equals(pathInfo) && ConditionalGet.notModified(request, response,
+                    currentETag(), rdfService.getLastModified())) {
+                return;
+            }
+
             if (pathInfo == null || pathInfo.equals("/")) {
                 // Get all destinations from RDF
-                List<Map<String, String>> destinations = rdfService.getAllDestinations();
-                out.print(gson.toJson(destinations));
+                JsonStream.writeArray(gson, out, sink -> rdfService.forEachDestination(sink::accept));
 
             } else if (pathInfo.equals("/destinations")) {
-                // Part 2, Task 4: Get all destinations
-                List<Map<String, String>> destinations = rdfService.getAllDestinations();
-                out.print(gson.toJson(destinations));
+                // Part 2, Task 4: Get all destinations, or one page of them when limit is given
+                String limit = request.getParameter("limit");
+                if (limit != null) {
+                    Page<Map<String, String>> page = rdfService.getDestinationsPage(
+                            request.getParameter("cursor"), pageSize(limit));
+                    gson.toJson(page, out);
+                } else {
+                    JsonStream.writeArray(gson, out, sink -> rdfService.forEachDestination(sink::accept));
+                }
 
             } else if (pathInfo.equals("/destination")) {
                 // Get destination details
                 String uri = request.getParameter("uri");
                 if (uri != null) {
                     Map<String, Object> details = rdfService.getDestinationDetails(uri);
-                    out.print(gson.toJson(details));
+                    gson.toJson(details, out);
                 } else {
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     out.print("{\"error\": \"URI parameter required\"}");
@@ -61,7 +105,7 @@ public class RDFServlet extends HttpServlet {
                 String name = request.getParameter("name");
                 if (name != null) {
                     Map<String, Object> requirements = rdfService.getDestinationRequirements(name);
-                    out.print(gson.toJson(requirements));
+                    gson.toJson(requirements, out);
                 } else {
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     out.print("{\"error\": \"Name parameter required\"}");
@@ -70,14 +114,14 @@ public class RDFServlet extends HttpServlet {
             } else if (pathInfo.equals("/graph")) {
                 // Part 2, Task 2: Get graph data for visualization
                 Map<String, Object> graphData = rdfService.getGraphData();
-                out.print(gson.toJson(graphData));
+                gson.toJson(graphData, out);
 
             } else if (pathInfo.equals("/graph/highlight")) {
                 // Part 2, Task 5: Get graph with highlighted nodes
                 String name = request.getParameter("name");
                 if (name != null) {
                     Map<String, Object> graphData = rdfService.getGraphDataWithHighlight(name);
-                    out.print(gson.toJson(graphData));
+                    gson.toJson(graphData, out);
                 } else {
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     out.print("{\"error\": \"Name parameter required\"}");
@@ -87,17 +131,29 @@ public class RDFServlet extends HttpServlet {
                 // Execute SPARQL query
                 String query = request.getParameter("query");
                 if (query != null) {
-                    List<Map<String, String>> results = rdfService.executeSPARQL(query);
-                    out.print(gson.toJson(results));
+                    writeSPARQL(query, request, response, out);
                 } else {
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     out.print("{\"error\": \"Query parameter required\"}");
                 }
 
+            } else if (pathInfo.equals("/sparql/stats")) {
+                // Hits, misses and size of the SPARQL result cache, admission and timeout counters
+                gson.toJson(rdfService.getSPARQLStats(), out);
+
             } else {
                 response.setStatus(HttpServletResponse.SC_NOT_FOUND);
                 out.print("{\"error\": \"Endpoint not found\"}");
             }
+        } catch (RejectedExecutionException e) {
+            // Too many SPARQL queries at once
+            response.setStatus(429);
+            response.setHeader("Retry-After", String.valueOf(SPARQL_RETRY_AFTER_SECONDS));
+            gson.toJson(Map.of("error", String.valueOf(e.getMessage())), out);
+        } catch (IllegalArgumentException e) {
+            // Bad limit, cursor or query
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            gson.toJson(Map.of("error", String.valueOf(e.getMessage())), out);
         } catch (Exception e) {
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             out.print("{\"error\": \"" + e.getMessage() + "\"}");
@@ -105,6 +161,39 @@ public class RDFServlet extends HttpServlet {
         }
     }
 
+    // {"rows": [...], "truncated": false, "maxRows": N}, plus "timedOut": true for a partial result.
+    // Rows are streamed as they come; nothing is written before the first one, so a query that
+    // times out without any still gets an error status. A partial result is kept out of the
+    // compression cache, and sent with no-store while its headers are still uncommitted.
+    private void writeSPARQL(String query, HttpServletRequest request, HttpServletResponse response,
+                             PrintWriter out) {
+        boolean[] started = {false};
+        RDFService.SPARQLResult result = rdfService.executeSPARQL(query, row -> {
+            out.print(started[0] ? "," : "{\"rows\":[");
+            started[0] = true;
+            gson.toJson(row, out);
+        });
+        if (result.isTimedOut()) {
+            request.setAttribute(CompressionFilter.NO_STORE_ATTRIBUTE, Boolean.TRUE);
+            if (!response.isCommitted()) {
+                response.setHeader("Cache-Control", "no-store");
+            }
+        }
+        if (!started[0]) {
+            if (result.isTimedOut()) {
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                out.print("{\"error\": \"SPARQL query timed out\"}");
+                return;
+            }
+            out.print("{\"rows\":[");
+        }
+        out.print("],\"truncated\":" + result.isTruncated() + ",\"maxRows\":" + result.getMaxRows());
+        if (result.isTimedOut()) {
+            out.print(",\"timedOut\":true");
+        }
+        out.print("}");
+    }
+
     @Override
     protected void doPost(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
@@ -189,4 +278,16 @@ public class RDFServlet extends HttpServlet {
             e.printStackTrace();
         }
     }
+
+    private String currentETag() {
+        return ConditionalGet.etag("rdf", rdfService.getDataTag());
+    }
+
+    private static int pageSize(String limit) {
+        int size = Integer.parseInt(limit);
+        if (size <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        return Math.min(size, MAX_PAGE_SIZE);
+    }
 }
@@ -1,19 +1,44 @@
 package com.vacation.servlet;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.vacation.filter.CompressionFilter;
 import com.vacation.model.Destination;
+import com.vacation.model.Page;
 import com.vacation.model.User;
 import com.vacation.service.XMLService;
+import com.vacation.service.XMLStreamLoader;
+import com.vacation.service.XQueryRunner;
+import com.vacation.util.ConditionalGet;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.function.Supplier;
 
 public class XMLServlet extends HttpServlet {
+    // Bulk imports report at most this many validation errors
+    private static final int MAX_REPORTED_ERRORS = 100;
+    // Largest page served by paginated listings
+    private static final int MAX_PAGE_SIZE = 1000;
+    // Results returned by /search when no limit is given
+    private static final int DEFAULT_SEARCH_LIMIT = 20;
+    // Seconds a client should wait after a 429 when all XQuery slots are busy
+    private static final int XQUERY_RETRY_AFTER_SECONDS = 2;
+    // Response content type per XQuery serialisation method
+    private static final Map<String, String> XQUERY_CONTENT_TYPES = Map.of(
+            "xml", "application/xml",
+            "text", "text/plain",
+            "adaptive", "text/plain",
+            "json", "application/json");
+
     private XMLService xmlService;
     private Gson gson;
 
@@ -21,8 +46,29 @@ public class XMLServlet extends HttpServlet {
     public void init() throws ServletException {
         super.init();
         String contextPath = getServletContext().getRealPath("/WEB-INF/classes");
-        xmlService = new XMLService(contextPath);
+        xmlService = new XMLService(contextPath, loadSettings());
         gson = new Gson();
+        // Lets the compression filter serve cached bytes while the data is unchanged
+        getServletContext().setAttribute(CompressionFilter.ETAG_ATTRIBUTE + getServletName(),
+                (Supplier<String>) this::currentETag);
+    }
+
+    @Override
+    public void destroy() {
+        getServletContext().removeAttribute(CompressionFilter.ETAG_ATTRIBUTE + getServletName());
+        xmlService.close();
+        super.destroy();
+    }
+
+    // Servlet init parameters from web.xml, passed on to the service
+    private Properties loadSettings() {
+        Properties settings = new Properties();
+        Enumeration<String> names = getInitParameterNames();
+        while (names.hasMoreElements()) {
+            String name = names.nextElement();
+            settings.setProperty(name, getInitParameter(name));
+        }
+        return settings;
     }
 
     @Override
@@ -35,52 +81,84 @@ public class XMLServlet extends HttpServlet {
         PrintWriter out = response.getWriter();
 
         try {
+            // Everything but the load progress and the XQuery slots derives from the data version:
+            // answer conditional requests before running any query
+            if (!"/status".equals(pathInfo) && !"/xquery/status".equals(pathInfo)
+                    && ConditionalGet.notModified(request, response, currentETag(), xmlService.getLastModified())) {
+                return;
+            }
+
             if (pathInfo == null || pathInfo.equals("/")) {
                 // Get all destinations
                 List<Destination> destinations = xmlService.getAllDestinations();
-                out.print(gson.toJson(destinations));
+                gson.toJson(destinations, out);
             } else if (pathInfo.equals("/destinations")) {
-                // Get all destinations
-                List<Destination> destinations = xmlService.getAllDestinations();
-                out.print(gson.toJson(destinations));
+                // Get all destinations, or one page of them when limit is given
+                String limit = request.getParameter("limit");
+                if (limit != null) {
+                    Page<Destination> page = xmlService.getDestinationsPage(
+                            request.getParameter("cursor"), pageSize(limit));
+                    gson.toJson(page, out);
+                } else {
+                    List<Destination> destinations = xmlService.getAllDestinations();
+                    gson.toJson(destinations, out);
+                }
+            } else if (pathInfo.equals("/status")) {
+                // Load progress of destinations.xml
+                gson.toJson(xmlService.getLoadStatus(), out);
             } else if (pathInfo.equals("/user")) {
                 // Get first user
                 User user = xmlService.getFirstUser();
-                out.print(gson.toJson(user));
+                gson.toJson(user, out);
             } else if (pathInfo.equals("/activities")) {
                 // Get all unique activities
                 Set<String> activities = xmlService.getAllActivities();
-                out.print(gson.toJson(activities));
+                gson.toJson(activities, out);
             } else if (pathInfo.equals("/byBudget")) {
                 // Task 6: Get destinations by budget
                 String budgetParam = request.getParameter("budget");
                 if (budgetParam != null) {
                     double budget = Double.parseDouble(budgetParam);
                     List<Destination> destinations = xmlService.getDestinationsByBudget(budget);
-                    out.print(gson.toJson(destinations));
+                    gson.toJson(destinations, out);
                 } else {
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     out.print("{\"error\": \"Budget parameter required\"}");
                 }
             } else if (pathInfo.equals("/recommended")) {
-                // Task 7: Get recommended destinations
-                User user = xmlService.getFirstUser();
+                // Task 7: Get recommended destinations, for the given user or the first one
+                String userId = request.getParameter("userId");
+                User user = userId != null
+                        ? xmlService.getUser(Integer.parseInt(userId))
+                        : xmlService.getFirstUser();
                 if (user != null) {
-                    List<Destination> destinations = xmlService.getRecommendedDestinations(user);
+                    List<Destination> destinations =
+                            xmlService.getRecommendedDestinations(user, recommendationLimit(request));
                     Map<String, Object> result = new HashMap<>();
                     result.put("user", user);
                     result.put("destinations", destinations);
-                    out.print(gson.toJson(result));
+                    gson.toJson(result, out);
                 } else {
                     response.setStatus(HttpServletResponse.SC_NOT_FOUND);
                     out.print("{\"error\": \"No user found\"}");
                 }
+            } else if (pathInfo.equals("/recommended/all")) {
+                // Recommendations for every user, one JSON object per line, written as they complete
+                // (scored on the service's pool, written from this thread)
+                response.setContentType("application/x-ndjson");
+                xmlService.forEachUserRecommendation(recommendationLimit(request), (user, destinations) -> {
+                    Map<String, Object> line = new LinkedHashMap<>();
+                    line.put("userId", user.getId());
+                    line.put("destinations", destinations);
+                    gson.toJson(line, out);
+                    out.print('\n');
+                }, out::flush);
             } else if (pathInfo.equals("/byActivity")) {
                 // Task 10: Get destinations by activity
                 String activity = request.getParameter("activity");
                 if (activity != null) {
                     List<Destination> destinations = xmlService.getDestinationsByActivity(activity);
-                    out.print(gson.toJson(destinations));
+                    gson.toJson(destinations, out);
                 } else {
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     out.print("{\"error\": \"Activity parameter required\"}");
@@ -91,7 +169,7 @@ public class XMLServlet extends HttpServlet {
                 if (name != null) {
                     Destination destination = xmlService.getDestinationByName(name);
                     if (destination != null) {
-                        out.print(gson.toJson(destination));
+                        gson.toJson(destination, out);
                     } else {
                         response.setStatus(HttpServletResponse.SC_NOT_FOUND);
                         out.print("{\"error\": \"Destination not found\"}");
@@ -100,6 +178,48 @@ public class XMLServlet extends HttpServlet {
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
                     out.print("{\"error\": \"Name parameter required\"}");
                 }
+            } else if (pathInfo.equals("/search")) {
+                // Ranked full-text search over names and descriptions
+                String query = request.getParameter("q");
+                if (query != null) {
+                    String limit = request.getParameter("limit");
+                    int size = limit != null ? pageSize(limit) : DEFAULT_SEARCH_LIMIT;
+                    gson.toJson(xmlService.searchDestinations(query, size), out);
+                } else {
+                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                    out.print("{\"error\": \"q parameter required\"}");
+                }
+
+            } else if (pathInfo.equals("/filter")) {
+                // Combined filters: budget range, maximum duration, any of the activities
+                String limit = request.getParameter("limit");
+                List<Destination> destinations = xmlService.findDestinations(
+                        doubleParameter(request, "minBudget"), doubleParameter(request, "maxBudget"),
+                        intParameter(request, "maxDuration"), activities(request),
+                        request.getParameter("sort"), limit != null ? pageSize(limit) : MAX_PAGE_SIZE);
+                gson.toJson(destinations, out);
+
+            } else if (pathInfo.equals("/facets")) {
+                // Counts per activity, budget band and duration band under the same filters as /filter
+                Map<String, Object> facets = xmlService.getFacets(
+                        doubleParameter(request, "minBudget"), doubleParameter(request, "maxBudget"),
+                        intParameter(request, "maxDuration"), activities(request));
+                gson.toJson(facets, out);
+
+            } else if (pathInfo.equals("/xquery/queries")) {
+                // Names of the stored queries, usable as /xquery?name=
+                gson.toJson(xmlService.getXQueryRunner().getNamedQueries(), out);
+
+            } else if (pathInfo.equals("/xquery/status")) {
+                // Slots in use, including queries still running past their deadline: live, never cached
+                response.setHeader("Cache-Control", "no-store");
+                request.setAttribute(CompressionFilter.NO_STORE_ATTRIBUTE, Boolean.TRUE);
+                gson.toJson(xmlService.getXQueryRunner().getStatus(), out);
+
+            } else if (pathInfo.equals("/xquery")) {
+                // Run an XQuery given as text or by name
+                runXQuery(request, response, out, request.getParameter("query"));
+
             } else if (pathInfo.equals("/transform")) {
                 // Task 8: Transform XML to HTML using XSLT
                 response.setContentType("text/html");
@@ -113,6 +233,10 @@ public class XMLServlet extends HttpServlet {
                 response.setStatus(HttpServletResponse.SC_NOT_FOUND);
                 out.print("{\"error\": \"Endpoint not found\"}");
             }
+        } catch (IllegalArgumentException e) {
+            // Bad number, limit or cursor
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            gson.toJson(Map.of("error", String.valueOf(e.getMessage())), out);
         } catch (Exception e) {
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             out.print("{\"error\": \"" + e.getMessage() + "\"}");
@@ -139,26 +263,18 @@ public class XMLServlet extends HttpServlet {
                 String activity2 = request.getParameter("activity2");
                 double budget = Double.parseDouble(request.getParameter("budget"));
 
+                Destination destination = new Destination(0, name, description, duration,
+                        activity1, activity2, budget);
+
                 // Validation
-                if (name == null || name.trim().isEmpty()) {
+                String error = validateDestination(destination);
+                if (error != null) {
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    out.print("{\"error\": \"Name is required\"}");
-                    return;
-                }
-                if (duration <= 0) {
-                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    out.print("{\"error\": \"Duration must be positive\"}");
-                    return;
-                }
-                if (budget <= 0) {
-                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    out.print("{\"error\": \"Budget must be positive\"}");
+                    out.print(gson.toJson(Map.of("error", error)));
                     return;
                 }
 
-                int newId = xmlService.getNextDestinationId();
-                Destination destination = new Destination(newId, name, description, duration,
-                        activity1, activity2, budget);
+                destination.setId(xmlService.getNextDestinationId());
 
                 xmlService.addDestination(destination);
 
@@ -172,44 +288,257 @@ public class XMLServlet extends HttpServlet {
                 String preferredActivity = request.getParameter("preferredActivity");
                 double budget = Double.parseDouble(request.getParameter("budget"));
 
+                User user = new User(0, firstName, lastName, availability,
+                        preferredActivity, budget);
+
                 // Validation
-                if (firstName == null || firstName.trim().isEmpty()) {
+                String error = validateUser(user);
+                if (error != null) {
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    out.print("{\"error\": \"First name is required\"}");
+                    out.print(gson.toJson(Map.of("error", error)));
                     return;
                 }
-                if (lastName == null || lastName.trim().isEmpty()) {
-                    response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    out.print("{\"error\": \"Last name is required\"}");
-                    return;
+
+                user.setId(xmlService.getNextUserId());
+
+                xmlService.addUser(user);
+
+                out.print(gson.toJson(Map.of("success", true, "user", user)));
+
+            } else if (pathInfo.equals("/bulk/destinations")) {
+                // Bulk import: JSON array or XML fragment of <destination> elements, bare or in a root
+                List<Destination> batch = isXml(request)
+                        ? new XMLStreamLoader().loadFragment(request.getInputStream()).getDestinations()
+                        : readJsonArray(request, Destination.class);
+
+                List<Map<String, Object>> errors = new ArrayList<>();
+                for (int i = 0; i < batch.size() && errors.size() < MAX_REPORTED_ERRORS; i++) {
+                    String error = validateDestination(batch.get(i));
+                    if (error != null) errors.add(Map.of("index", i, "error", error));
                 }
-                if (availability <= 0) {
+                if (!errors.isEmpty()) {
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    out.print("{\"error\": \"Availability must be positive\"}");
+                    out.print(gson.toJson(Map.of("error", "Validation failed, nothing imported",
+                            "errors", errors)));
                     return;
                 }
-                if (budget <= 0) {
+
+                int firstId = xmlService.addDestinations(batch);
+                out.print(gson.toJson(Map.of("success", true, "count", batch.size(), "firstId", firstId)));
+
+            } else if (pathInfo.equals("/bulk/users")) {
+                // Bulk import: JSON array or XML fragment of <user> elements, bare or in a root
+                List<User> batch = isXml(request)
+                        ? new XMLStreamLoader().loadFragment(request.getInputStream()).getUsers()
+                        : readJsonArray(request, User.class);
+
+                List<Map<String, Object>> errors = new ArrayList<>();
+                for (int i = 0; i < batch.size() && errors.size() < MAX_REPORTED_ERRORS; i++) {
+                    String error = validateUser(batch.get(i));
+                    if (error != null) errors.add(Map.of("index", i, "error", error));
+                }
+                if (!errors.isEmpty()) {
                     response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
-                    out.print("{\"error\": \"Budget must be positive\"}");
+                    out.print(gson.toJson(Map.of("error", "Validation failed, nothing imported",
+                            "errors", errors)));
                     return;
                 }
 
-                int newId = xmlService.getNextUserId();
-                User user = new User(newId, firstName, lastName, availability,
-                        preferredActivity, budget);
-
-                xmlService.addUser(user);
+                int firstId = xmlService.addUsers(batch);
+                out.print(gson.toJson(Map.of("success", true, "count", batch.size(), "firstId", firstId)));
 
-                out.print(gson.toJson(Map.of("success", true, "user", user)));
+            } else if (pathInfo.equals("/xquery")) {
+                // Run an XQuery sent as the request body (or a form field), or a stored one by name
+                String query = request.getParameter("query");
+                if (query == null && request.getParameter("name") == null) {
+                    query = readBody(request);
+                }
+                runXQuery(request, response, out, query);
 
             } else {
                 response.setStatus(HttpServletResponse.SC_NOT_FOUND);
                 out.print("{\"error\": \"Endpoint not found\"}");
             }
+        } catch (XMLStreamException | JsonParseException | NumberFormatException e) {
+            // Malformed request body
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            out.print(gson.toJson(Map.of("error", "Malformed request body: " + e.getMessage())));
+        } catch (IllegalArgumentException e) {
+            // Rejected by schema validation
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            out.print(gson.toJson(Map.of("error", e.getMessage())));
         } catch (Exception e) {
             response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
             out.print("{\"error\": \"" + e.getMessage() + "\"}");
             e.printStackTrace();
         }
     }
+
+    private static int pageSize(String limit) {
+        int size = Integer.parseInt(limit);
+        if (size <= 0) {
+            throw new IllegalArgumentException("limit must be positive");
+        }
+        return Math.min(size, MAX_PAGE_SIZE);
+    }
+
+    // Optional top-k for recommendations (cheapest first), unlimited by default
+    private static int recommendationLimit(HttpServletRequest request) {
+        String limit = request.getParameter("limit");
+        return limit != null ? Integer.parseInt(limit) : Integer.MAX_VALUE;
+    }
+
+    private static Double doubleParameter(HttpServletRequest request, String name) {
+        String value = request.getParameter(name);
+        return value != null && !value.isEmpty() ? Double.valueOf(value) : null;
+    }
+
+    private static Integer intParameter(HttpServletRequest request, String name) {
+        String value = request.getParameter(name);
+        return value != null && !value.isEmpty() ? Integer.valueOf(value) : null;
+    }
+
+    // activity=a&activity=b or activity=a,b
+    private static Set<String> activities(HttpServletRequest request) {
+        Set<String> activities = new LinkedHashSet<>();
+        String[] values = request.getParameterValues("activity");
+        if (values != null) {
+            for (String value : values) {
+                for (String activity : value.split(",")) {
+                    if (!activity.trim().isEmpty()) activities.add(activity.trim());
+                }
+            }
+        }
+        return activities;
+    }
+
+    private String currentETag() {
+        return ConditionalGet.etag("xml", xmlService.getDataTag());
+    }
+
+    // Evaluate a query with its var.* parameters as external variables and stream the result.
+    // Errors can only be reported as such while nothing has been written; the runner only
+    // writes once the first item is available, so that covers static errors, most dynamic
+    // errors and timeouts.
+    private void runXQuery(HttpServletRequest request, HttpServletResponse response, PrintWriter out,
+                           String query) throws IOException {
+        XQueryRunner runner = xmlService.getXQueryRunner();
+        String name = request.getParameter("name");
+        if (name != null) {
+            query = runner.getNamedQuery(name);
+            if (query == null) {
+                response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+                gson.toJson(Map.of("error", "Unknown query: " + name), out);
+                return;
+            }
+        }
+        if (query == null || query.trim().isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            out.print("{\"error\": \"Query or name parameter required\"}");
+            return;
+        }
+
+        String method = request.getParameter("method") != null ? request.getParameter("method") : "xml";
+        String contentType = XQUERY_CONTENT_TYPES.get(method);
+        if (contentType == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            out.print("{\"error\": \"method must be xml, text, adaptive or json\"}");
+            return;
+        }
+        String timeout = request.getParameter("timeout");
+        long timeoutMillis = timeout != null
+                ? (long) (Double.parseDouble(timeout) * 1000) : runner.getMaxTimeoutMillis();
+        if (timeoutMillis <= 0) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+
+        Map<String, String> variables = new HashMap<>();
+        for (Map.Entry<String, String[]> parameter : request.getParameterMap().entrySet()) {
+            if (parameter.getKey().startsWith("var.")) {
+                variables.put(parameter.getKey().substring(4), parameter.getValue()[0]);
+            }
+        }
+
+        response.setContentType(contentType);
+        try {
+            runner.run(query, variables, method, out, timeoutMillis);
+        } catch (XQueryRunner.QueryException e) {
+            if (e.isOutputStarted()) {
+                // Too late for a status: the client gets a truncated body, which must not be
+                // replayed to anyone else
+                request.setAttribute(CompressionFilter.NO_STORE_ATTRIBUTE, Boolean.TRUE);
+                e.printStackTrace();
+                return;
+            }
+            if (e.isRejected()) {
+                response.setStatus(429);
+                response.setHeader("Retry-After", String.valueOf(XQUERY_RETRY_AFTER_SECONDS));
+            } else {
+                response.setStatus(e.isTimedOut()
+                        ? HttpServletResponse.SC_SERVICE_UNAVAILABLE : HttpServletResponse.SC_BAD_REQUEST);
+            }
+            response.setContentType("application/json");
+            gson.toJson(Map.of("error", String.valueOf(e.getMessage())), out);
+        }
+    }
+
+    private static String readBody(HttpServletRequest request) throws IOException {
+        StringBuilder body = new StringBuilder();
+        char[] buffer = new char[8192];
+        BufferedReader reader = request.getReader();
+        for (int n; (n = reader.read(buffer)) != -1; ) {
+            body.append(buffer, 0, n);
+        }
+        return body.toString();
+    }
+
+    private static boolean isXml(HttpServletRequest request) {
+        String contentType = request.getContentType();
+        return contentType != null && contentType.contains("xml");
+    }
+
+    // Stream-parse a JSON array from the request body, one element at a time
+    private <T> List<T> readJsonArray(HttpServletRequest request, Class<T> type) throws IOException {
+        List<T> items = new ArrayList<>();
+        try (JsonReader reader = new JsonReader(request.getReader())) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                items.add(gson.fromJson(reader, type));
+            }
+            reader.endArray();
+        } catch (IllegalStateException e) {
+            // JsonReader reports unexpected tokens this way
+            throw new JsonParseException(e.getMessage(), e);
+        }
+        return items;
+    }
+
+    private static String validateDestination(Destination destination) {
+        if (destination.getName() == null || destination.getName().trim().isEmpty()) {
+            return "Name is required";
+        }
+        if (destination.getDuration() <= 0) {
+            return "Duration must be positive";
+        }
+        if (destination.getBudget() <= 0) {
+            return "Budget must be positive";
+        }
+        return null;
+    }
+
+    private static String validateUser(User user) {
+        if (user.getFirstName() == null || user.getFirstName().trim().isEmpty()) {
+            return "First name is required";
+        }
+        if (user.getLastName() == null || user.getLastName().trim().isEmpty()) {
+            return "Last name is required";
+        }
+        if (user.getAvailability() <= 0) {
+            return "Availability must be positive";
+        }
+        if (user.getBudget() <= 0) {
+            return "Budget must be positive";
+        }
+        return null;
+    }
 }
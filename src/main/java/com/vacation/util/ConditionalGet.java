@@ -0,0 +1,68 @@
+package com.vacation.util;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+// ETag / Last-Modified validation for GET responses derived from a data version.
+// Call before producing the body: when the client's copy is still current the response
+// becomes a bodiless 304 and the request can stop there.
+public final class ConditionalGet {
+
+    private ConditionalGet() {
+    }
+
+    // Sets the validators; returns true when a 304 was sent
+    public static boolean notModified(HttpServletRequest request, HttpServletResponse response,
+                                      String etag, long lastModified) {
+        response.setHeader("ETag", etag);
+        response.setDateHeader("Last-Modified", lastModified);
+        // Caches may keep the response but must revalidate it
+        response.setHeader("Cache-Control", "no-cache");
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        boolean current;
+        if (ifNoneMatch != null) {
+            // If-None-Match takes precedence over If-Modified-Since
+            current = matches(ifNoneMatch, etag);
+        } else {
+            long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+            // HTTP dates have a one second resolution
+            current = ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        }
+
+        if (current) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        }
+        return current;
+    }
+
+    // Strong ETag for a data tag
+    public static String etag(String prefix, String dataTag) {
+        return "\"" + prefix + "-" + dataTag + "\"";
+    }
+
+    // Weak comparison, as RFC 7232 prescribes for If-None-Match
+    private static boolean matches(String ifNoneMatch, String etag) {
+        String tag = stripWeak(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.equals("*") || stripWeak(candidate).equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException e) {
+            // Unparseable date: ignore the header
+            return -1;
+        }
+    }
+}
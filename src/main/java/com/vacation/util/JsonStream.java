@@ -0,0 +1,37 @@
+package com.vacation.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonNull;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.function.Consumer;
+
+// Writes JSON arrays element by element straight onto a Writer (usually the servlet response),
+// so a large result is never held as one String.
+public final class JsonStream {
+
+    private JsonStream() {
+    }
+
+    // Source that pushes its elements one at a time, e.g. rows of a SPARQL result set
+    public interface Source {
+        void forEach(Consumer<Object> sink);
+    }
+
+    public static void writeArray(Gson gson, Writer out, Source source) throws IOException {
+        // Not closed: closing would close the response writer
+        JsonWriter writer = gson.newJsonWriter(out);
+        writer.beginArray();
+        source.forEach(item -> {
+            if (item == null) {
+                gson.toJson(JsonNull.INSTANCE, writer);
+            } else {
+                gson.toJson(item, item.getClass(), writer);
+            }
+        });
+        writer.endArray();
+        writer.flush();
+    }
+}
@@ -0,0 +1,34 @@
+package com.vacation.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Small thread-safe LRU cache bounded by number of entries
+public class LruCache<K, V> {
+    private final LinkedHashMap<K, V> map;
+
+    public LruCache(int maxEntries) {
+        this.map = new LinkedHashMap<K, V>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public synchronized V get(K key) {
+        return map.get(key);
+    }
+
+    public synchronized void put(K key, V value) {
+        map.put(key, value);
+    }
+
+    public synchronized void clear() {
+        map.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+}
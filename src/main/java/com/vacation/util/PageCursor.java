@@ -0,0 +1,33 @@
+package com.vacation.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+// Opaque continuation tokens for keyset pagination: the sort key of the last item of a page,
+// URL-safe Base64 encoded. Clients pass them back unchanged.
+public final class PageCursor {
+    private static final char SEPARATOR = '\u0000';
+
+    private PageCursor() {
+    }
+
+    public static String encode(String... key) {
+        String joined = String.join(String.valueOf(SEPARATOR), key);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(joined.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Key parts of a cursor; IllegalArgumentException if it was not produced by encode
+    public static String[] decode(String cursor, int parts) {
+        String joined;
+        try {
+            joined = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        String[] key = joined.split(String.valueOf(SEPARATOR), -1);
+        if (key.length != parts) {
+            throw new IllegalArgumentException("Invalid cursor");
+        }
+        return key;
+    }
+}
@@ -493,16 +493,29 @@ async function modifyRDFDestination(e) {
     }
 }
 
-// Task 4: Load RDF Destinations
-async function loadRDFDestinations() {
+// Task 4: Load RDF Destinations (one page at a time)
+const RDF_PAGE_SIZE = 24;
+
+async function loadRDFDestinations(cursor = null) {
     try {
-        const response = await fetch('/vacation-recommender/api/rdf/destinations');
-        const destinations = await response.json();
+        let url = `/vacation-recommender/api/rdf/destinations?limit=${RDF_PAGE_SIZE}`;
+        if (cursor) {
+            url += `&cursor=${encodeURIComponent(cursor)}`;
+        }
+        const response = await fetch(url);
+        const page = await response.json();
+        const destinations = page.items;
 
         const container = document.getElementById('rdfDestinationsList');
-        container.innerHTML = '';
+        const moreButton = document.getElementById('rdfDestinationsMore');
+        if (moreButton) {
+            moreButton.remove();
+        }
+        if (!cursor) {
+            container.innerHTML = '';
+        }
 
-        if (destinations.length === 0) {
+        if (!cursor && destinations.length === 0) {
             container.innerHTML = '<p>Aucune destination trouvée dans RDF.</p>';
             return;
         }
@@ -519,6 +532,15 @@ async function loadRDFDestinations() {
             `;
             container.appendChild(card);
         });
+
+        if (page.nextCursor) {
+            const button = document.createElement('button');
+            button.id = 'rdfDestinationsMore';
+            button.className = 'btn btn-secondary';
+            button.textContent = 'Charger plus';
+            button.onclick = () => loadRDFDestinations(page.nextCursor);
+            container.appendChild(button);
+        }
     } catch (error) {
         console.error('Error loading RDF destinations:', error);
     }